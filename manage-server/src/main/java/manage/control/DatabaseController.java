@@ -1,195 +1,642 @@
 package manage.control;
 
-import manage.format.EngineBlockFormatter;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import manage.model.EntityType;
 import manage.model.MetaData;
+import manage.model.PushConnection;
+import manage.model.PushFingerprint;
 import manage.model.Scope;
+import manage.push.ChunkedPush;
+import manage.push.PushBytes;
+import manage.push.PushCompression;
+import manage.push.PushDelta;
+import manage.push.PushSnapshot;
+import manage.push.PushTimings;
+import manage.push.PushView;
 import manage.repository.MetaDataRepository;
 import manage.web.PreemptiveAuthenticationHttpComponentsClientHttpRequestFactory;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
 import org.springframework.core.env.Profiles;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
+import static manage.push.PushTimings.Stage.FORMAT;
+import static manage.push.PushTimings.Stage.LOAD;
+import static manage.push.PushTimings.Stage.SERIALIZE;
+import static manage.push.PushTimings.Stage.TRANSMIT;
 
 @Component
 @RestController
 public class DatabaseController {
 
+    private static final Logger LOG = LoggerFactory.getLogger(DatabaseController.class);
+
     private RestTemplate restTemplate;
     private String pushUri;
+    private String deltaPushUri;
+    private boolean deltaEnabled;
+    private long ebTimeoutSeconds;
+    private int chunkSize;
+    private String chunkPushUri;
+    private String commitPushUri;
+    private PushCompression ebCompression;
 
     private RestTemplate oidcRestTemplate;
     private String oidcPushUri;
     private boolean oidcEnabled;
+    private long oidcTimeoutSeconds;
+    private PushCompression oidcCompression;
 
     private boolean excludeEduGainImported;
     private boolean excludeOidcRP;
 
     private MetaDataRepository metaDataRepository;
+    private PushView pushView;
 
     private Environment environment;
 
+    private ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    private int formatBatchSize;
+
+    private final AtomicReference<PushSnapshot> snapshot = new AtomicReference<>();
+    private Duration snapshotMaxAge;
+
+    private ExecutorService pushExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "push");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Held from the start of a push until all its push threads have finished, also after the push has timed out
+    private final Semaphore pushPermit = new Semaphore(1);
+
     @Autowired
     DatabaseController(MetaDataRepository metaDataRepository,
+                       PushView pushView,
                        @Value("${push.eb.url}") String pushUri,
                        @Value("${push.eb.user}") String user,
                        @Value("${push.eb.password}") String password,
                        @Value("${push.eb.exclude_edugain_imports}") boolean excludeEduGainImported,
                        @Value("${push.eb.exclude_oidc_rp}") boolean excludeOidcRP,
+                       @Value("${push.eb.delta_enabled}") boolean deltaEnabled,
+                       @Value("${push.eb.delta_url}") String deltaPushUri,
+                       @Value("${push.eb.timeout_seconds}") long ebTimeoutSeconds,
+                       @Value("${push.eb.chunk_size}") int chunkSize,
+                       @Value("${push.eb.chunk_url}") String chunkPushUri,
+                       @Value("${push.eb.commit_url}") String commitPushUri,
+                       @Value("${push.eb.compression}") String ebCompression,
                        @Value("${push.oidc.url}") String oidcPushUri,
                        @Value("${push.oidc.user}") String oidcUser,
                        @Value("${push.oidc.password}") String oidcPassword,
                        @Value("${push.oidc.enabled}") boolean oidcEnabled,
+                       @Value("${push.oidc.timeout_seconds}") long oidcTimeoutSeconds,
+                       @Value("${push.oidc.compression}") String oidcCompression,
+                       @Value("${push.format.batch_size}") int formatBatchSize,
+                       @Value("${push.snapshot.max_age_seconds}") long snapshotMaxAgeSeconds,
                        Environment environment) throws MalformedURLException {
         this.metaDataRepository = metaDataRepository;
+        this.pushView = pushView;
         this.pushUri = pushUri;
-        this.restTemplate = new RestTemplate(getRequestFactory(user, password));
+        this.restTemplate = new RestTemplate(getRequestFactory(user, password, ebTimeoutSeconds));
         this.excludeEduGainImported = excludeEduGainImported;
         this.excludeOidcRP = excludeOidcRP;
-
-        this.oidcRestTemplate = new RestTemplate(getRequestFactory(oidcUser, oidcPassword));
+        this.deltaEnabled = deltaEnabled;
+        this.deltaPushUri = deltaPushUri;
+        this.ebTimeoutSeconds = ebTimeoutSeconds;
+        this.chunkSize = chunkSize;
+        this.chunkPushUri = chunkPushUri;
+        this.commitPushUri = commitPushUri;
+        this.ebCompression = PushCompression.fromConfiguration(ebCompression);
+
+        this.oidcRestTemplate = new RestTemplate(getRequestFactory(oidcUser, oidcPassword, oidcTimeoutSeconds));
         this.oidcPushUri = oidcPushUri;
         this.oidcEnabled = oidcEnabled;
+        this.oidcTimeoutSeconds = oidcTimeoutSeconds;
+        this.oidcCompression = PushCompression.fromConfiguration(oidcCompression);
+
+        this.formatBatchSize = Math.max(1, formatBatchSize);
+        this.snapshotMaxAge = Duration.ofSeconds(snapshotMaxAgeSeconds);
 
         this.environment = environment;
     }
 
+    /**
+     * Pushes to EngineBlock and - if enabled - to OIDC-NG concurrently. Each target is bounded by its own timeout and
+     * reports its own result, including the time spent loading, formatting, serializing and transmitting.
+     * <p>
+     * Pushes never overlap, as concurrent pushes would race on the push fingerprints. A push waits - at most the
+     * timeout of the push - until the push threads of the previous push have finished.
+     */
     public ResponseEntity<Map> doPush() {
         if (environment.acceptsProfiles(Profiles.of("dev"))) {
             return new ResponseEntity<>(Collections.singletonMap("status", 200), HttpStatus.OK);
         }
+        long start = System.nanoTime();
+        long timeoutSeconds = oidcEnabled ? Math.max(ebTimeoutSeconds, oidcTimeoutSeconds) : ebTimeoutSeconds;
+        try {
+            if (!pushPermit.tryAcquire(timeoutSeconds, TimeUnit.SECONDS)) {
+                LOG.error("Push not started, the previous push did not finish within {} seconds", timeoutSeconds);
+                return new ResponseEntity<>(failedPush(String.format(
+                        "Previous push did not finish within %s seconds", timeoutSeconds)),
+                        HttpStatus.INTERNAL_SERVER_ERROR);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ResponseEntity<>(failedPush("Push was interrupted"), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
 
-        Map<String, Map<String, Map<String, Object>>> json = this.pushPreview();
-
-        ResponseEntity<String> response = this.restTemplate.postForEntity(pushUri, json, String.class);
-        HttpStatus statusCode = response.getStatusCode();
+        AtomicInteger running = new AtomicInteger(oidcEnabled ? 2 : 1);
+        AtomicBoolean engineBlockAbandoned = new AtomicBoolean();
+        CompletableFuture<Map<String, Object>> engineBlockPush =
+                this.pushAsync(() -> this.pushEngineBlock(engineBlockAbandoned), running);
+        CompletableFuture<Map<String, Object>> oidcPush = oidcEnabled ? this.pushAsync(this::pushOidc, running) : null;
 
         Map<String, Object> result = new HashMap<>();
-        result.put("status", statusCode);
-        result.put("response", response);
+        Map<String, Object> engineBlockResult = this.awaitPush("EngineBlock", engineBlockPush, engineBlockAbandoned,
+                start, ebTimeoutSeconds);
+        boolean success = (boolean) engineBlockResult.get("success");
+        //Backward compatible top-level response of the EngineBlock push
+        result.put("response", engineBlockResult.remove("response"));
+        result.put("eb", engineBlockResult);
+
+        if (oidcPush != null) {
+            Map<String, Object> oidcResult = this.awaitPush("OIDC-NG", oidcPush, new AtomicBoolean(),
+                    start, oidcTimeoutSeconds);
+            success = success && (boolean) oidcResult.get("success");
+            result.put("oidc", oidcResult);
+        }
 
-        // Now push all oidc_rp metadata to OIDC proxy
-        if (!environment.acceptsProfiles(Profiles.of("dev")) && oidcEnabled) {
-            List<MetaData> oidcClients = metaDataRepository.getMongoTemplate().findAll(MetaData.class, "oidc10_rp");
-            List<Scope> scopes = metaDataRepository.getMongoTemplate().findAll(Scope.class);
-            Map<String, Scope> scopesMapped = scopes.stream().collect(toMap(entry -> entry.getName(), entry -> entry));
-            oidcClients.forEach(oidcClient -> {
-                Map<String, Object> metaDataFields = oidcClient.metaDataFields();
-                List<String> scopeList = (List<String>) metaDataFields.get("scopes");
-                if (!CollectionUtils.isEmpty(scopeList)) {
-                    List<Scope> transformedScope = scopeList.stream()
-                            .map(scope -> scopesMapped.getOrDefault(scope, null))
-                            .filter(Objects::nonNull)
-                            .collect(toList());
-                    metaDataFields.put("scopes", transformedScope);
+        result.put("status", success ? engineBlockResult.get("status") : HttpStatus.INTERNAL_SERVER_ERROR);
+        result.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return new ResponseEntity<>(result, success ? HttpStatus.OK : HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    /**
+     * Runs the push on a push thread. The last push thread to finish releases the push permit.
+     */
+    private CompletableFuture<Map<String, Object>> pushAsync(Supplier<Map<String, Object>> push, AtomicInteger running) {
+        Runnable finished = () -> {
+            if (running.decrementAndGet() == 0) {
+                pushPermit.release();
+            }
+        };
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return push.get();
+                } finally {
+                    finished.run();
                 }
-            });
-            this.oidcRestTemplate.postForEntity(oidcPushUri, oidcClients, Void.class);
-            result.put("oidc", true);
+            }, pushExecutor);
+        } catch (RuntimeException e) {
+            finished.run();
+            throw e;
         }
+    }
 
-        return new ResponseEntity<>(result, HttpStatus.OK);
+    /**
+     * Waits for the result of the push. The push is abandoned - and the flag set - when its result is not delivered,
+     * as cancelling the future does not interrupt the push thread.
+     */
+    private Map<String, Object> awaitPush(String target, CompletableFuture<Map<String, Object>> push,
+                                          AtomicBoolean abandoned, long start, long timeoutSeconds) {
+        long remainingNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds) - (System.nanoTime() - start);
+        try {
+            return push.get(Math.max(0L, remainingNanos), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            abandoned.set(true);
+            push.cancel(true);
+            LOG.error("Push to {} did not finish within {} seconds", target, timeoutSeconds);
+            return failedPush(String.format("Push to %s did not finish within %s seconds", target, timeoutSeconds));
+        } catch (ExecutionException e) {
+            LOG.error(String.format("Push to %s failed", target), e.getCause());
+            return failedPush(String.format("Push to %s failed: %s", target, e.getCause().getMessage()));
+        } catch (InterruptedException e) {
+            abandoned.set(true);
+            Thread.currentThread().interrupt();
+            return failedPush(String.format("Push to %s was interrupted", target));
+        }
     }
 
-    @GetMapping("/client/playground/pushPreview")
-    public Map<String, Map<String, Map<String, Object>>> pushPreview() {
-        EngineBlockFormatter formatter = new EngineBlockFormatter();
+    private Map<String, Object> failedPush(String error) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("success", false);
+        result.put("error", error);
+        return result;
+    }
+
+    private Map<String, Object> pushEngineBlock(AtomicBoolean abandoned) {
+        long start = System.nanoTime();
+        PushTimings timings = new PushTimings();
+
+        Map<String, String> previousFingerprints = timings.time(LOAD, this::previousFingerprints);
+        PushDelta pushDelta = new PushDelta(previousFingerprints);
+        //Without fingerprints we don't know what EB has received, so we have to push all connections
+        boolean deltaPush = deltaEnabled && !previousFingerprints.isEmpty();
+
+        PushBytes bytes = new PushBytes();
+        ResponseEntity<String> response = chunkSize > 0 ?
+                this.pushChunks(pushDelta, deltaPush, timings, bytes) :
+                this.pushSingleRequest(pushDelta, deltaPush, timings, bytes);
+
+        //RestTemplate throws an exception for non-successful status codes, so EB now has the pushed connections. A push
+        //that was reported as failed must be repeated by the next push, so the fingerprints must not reflect it
+        if (abandoned.get()) {
+            LOG.warn("Push to EngineBlock finished after it was abandoned, the fingerprints are not saved");
+        } else {
+            this.saveFingerprints(pushDelta);
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("success", true);
+        result.put("status", response.getStatusCode());
+        result.put("response", response);
+        if (deltaPush) {
+            result.put("delta", pushDelta.summary());
+        }
+        result.put("stages", timings.toMillis());
+        result.put("bytes", bytes.toMap());
+        result.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
 
-        List<MetaData> serviceProviders = metaDataRepository.getMongoTemplate().findAll(MetaData.class, "saml20_sp");
-        Stream<MetaData> metaDataStream = excludeEduGainImported ?
-                serviceProviders.stream()
-                        .filter(metaData -> {
-                            Map metaDataFields = metaData.metaDataFields();
-                            boolean importedFromEdugain = Boolean.TRUE.equals(metaDataFields.get("coin:imported_from_edugain"));
-                            boolean pushEnabled = Boolean.TRUE.equals(metaDataFields.get("coin:push_enabled"));
-                            return !importedFromEdugain || pushEnabled;
-                        }) : serviceProviders.stream();
+    private ResponseEntity<String> pushSingleRequest(PushDelta pushDelta, boolean deltaPush, PushTimings timings,
+                                                     PushBytes bytes) {
+        long requestStart = System.nanoTime();
+        long stagesBefore = timings.totalNanos();
+        ResponseEntity<String> response = this.restTemplate.execute(deltaPush ? deltaPushUri : pushUri, HttpMethod.POST,
+                request -> writeBody(request, ebCompression, bytes, outputStream ->
+                        this.writeConnections(outputStream, pushDelta, deltaPush, timings)),
+                this.restTemplate.responseEntityExtractor(String.class));
+        timings.add(TRANSMIT, (System.nanoTime() - requestStart) - (timings.totalNanos() - stagesBefore));
+        return response;
+    }
 
-        Map<String, Map<String, Object>> serviceProvidersToPush = metaDataStream
-                .filter(metaData -> !excludeFromPush(metaData.metaDataFields()))
-                .collect(toMap(MetaData::getId, formatter::parseServiceProvider));
+    /**
+     * Sends the connections in chunks to the chunk url, followed by a commit of all chunks. Formatting and sending
+     * are pipelined: the next chunk is written while the previous chunk is sent.
+     */
+    private ResponseEntity<String> pushChunks(PushDelta pushDelta, boolean deltaPush, PushTimings timings,
+                                              PushBytes bytes) {
+        ChunkedPush chunkedPush = new ChunkedPush(objectMapper.getFactory(), chunkSize, pushExecutor,
+                chunk -> this.restTemplate.execute(chunkPushUri, HttpMethod.POST,
+                        request -> writeBody(request, ebCompression, bytes, outputStream -> outputStream.write(chunk)),
+                        null),
+                timings);
+        this.forEachConnection(timings, connection -> {
+            boolean changed = pushDelta.register(connection.getId(), connection.getFingerprint());
+            if (changed || !deltaPush) {
+                chunkedPush.add(connection.getId(), connection.getJson());
+            }
+        });
+        chunkedPush.finish();
+
+        Map<String, Object> commit = new HashMap<>();
+        commit.put("pushId", chunkedPush.getPushId());
+        commit.put("chunks", chunkedPush.getChunks());
+        commit.put("delta", deltaPush);
+        if (deltaPush) {
+            commit.put("removed", pushDelta.getRemoved());
+        }
+        long start = System.nanoTime();
+        try {
+            return this.restTemplate.postForEntity(commitPushUri, commit, String.class);
+        } finally {
+            timings.add(TRANSMIT, System.nanoTime() - start);
+        }
+    }
 
-        List<MetaData> identityProviders = metaDataRepository.getMongoTemplate().findAll(MetaData.class, "saml20_idp");
+    private Map<String, Object> pushOidc() {
+        long start = System.nanoTime();
+        PushTimings timings = new PushTimings();
 
-        //Explicit only filter out 'null' objects in the disableConsent as generically filtering out 'nulls' can break things
-        filterOutNullDisableConsentExplanations(identityProviders);
+        Map<String, Scope> scopesMapped = timings.time(LOAD, () -> metaDataRepository.getMongoTemplate()
+                .findAll(Scope.class).stream()
+                .collect(toMap(Scope::getName, scope -> scope)));
 
-        Map<String, Map<String, Object>> identityProvidersToPush = identityProviders.stream()
-                .filter(metaData -> !excludeFromPush(metaData.metaDataFields()))
-                .collect(toMap(MetaData::getId, formatter::parseIdentityProvider));
+        PushBytes bytes = new PushBytes();
+        long requestStart = System.nanoTime();
+        long stagesBefore = timings.totalNanos();
+        ResponseEntity<Void> response = this.oidcRestTemplate.execute(oidcPushUri, HttpMethod.POST,
+                request -> writeBody(request, oidcCompression, bytes, outputStream ->
+                        this.writeOidcClients(outputStream, scopesMapped, timings)),
+                this.oidcRestTemplate.responseEntityExtractor(Void.class));
+        timings.add(TRANSMIT, (System.nanoTime() - requestStart) - (timings.totalNanos() - stagesBefore));
 
-        if (!excludeOidcRP) {
-            List<MetaData> oidcClients = metaDataRepository.getMongoTemplate().findAll(MetaData.class, "oidc10_rp");
-            Map<String, Map<String, Object>> oidcClientsToPush = oidcClients.stream()
-                    .filter(metaData -> !excludeFromPush(metaData.metaDataFields()))
-                    .collect(toMap(MetaData::getId, formatter::parseOidcClient));
+        Map<String, Object> result = new HashMap<>();
+        result.put("success", true);
+        result.put("status", response.getStatusCode());
+        result.put("stages", timings.toMillis());
+        result.put("bytes", bytes.toMap());
+        result.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
 
-            serviceProvidersToPush.putAll(oidcClientsToPush);
+    @SuppressWarnings("unchecked")
+    private void transformScopes(MetaData oidcClient, Map<String, Scope> scopesMapped) {
+        Map<String, Object> metaDataFields = oidcClient.metaDataFields();
+        List<String> scopeList = (List<String>) metaDataFields.get("scopes");
+        if (!CollectionUtils.isEmpty(scopeList)) {
+            List<Scope> transformedScope = scopeList.stream()
+                    .map(scope -> scopesMapped.getOrDefault(scope, null))
+                    .filter(Objects::nonNull)
+                    .collect(toList());
+            metaDataFields.put("scopes", transformedScope);
         }
+    }
 
-        serviceProvidersToPush.putAll(identityProvidersToPush);
-
-        Map<String, Map<String, Map<String, Object>>> results = new HashMap<>();
-        results.put("connections", serviceProvidersToPush);
+    @GetMapping("/client/playground/pushPreview")
+    @SuppressWarnings("unchecked")
+    public Map<String, Map<String, Map<String, Object>>> pushPreview() throws IOException {
+        return objectMapper.readValue(this.currentSnapshot().getJson(), Map.class);
+    }
 
-        return results;
+    /**
+     * The connections that would be pushed to EngineBlock, for consumers that pull the connections. Supports
+     * conditional requests with If-None-Match, so polling is cheap when nothing has changed.
+     */
+    @GetMapping({"/client/playground/snapshot", "/internal/snapshot"})
+    public ResponseEntity<byte[]> snapshot(WebRequest webRequest) {
+        PushSnapshot snapshot = this.currentSnapshot();
+        if (webRequest.checkNotModified(snapshot.getETag())) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .eTag(snapshot.getETag())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.getJson());
     }
 
-    private boolean excludeFromPush(Map metaDataFields) {
-        Object excludeFromPush = metaDataFields.getOrDefault("coin:exclude_from_push", false);
-        if (excludeFromPush instanceof String) {
-            return "1".equals(excludeFromPush);
+    /**
+     * The snapshot is cached until the change counter of the PushView changes or the snapshot expires.
+     */
+    private PushSnapshot currentSnapshot() {
+        long changeCounter = pushView.changeCounter();
+        PushSnapshot snapshot = this.snapshot.get();
+        if (snapshot != null && snapshot.isCurrent(changeCounter, snapshotMaxAge)) {
+            return snapshot;
+        }
+        synchronized (this.snapshot) {
+            snapshot = this.snapshot.get();
+            if (snapshot == null || !snapshot.isCurrent(changeCounter, snapshotMaxAge)) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                try {
+                    this.writeConnections(outputStream, new PushDelta(Collections.emptyMap()), false, new PushTimings());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                snapshot = new PushSnapshot(changeCounter, outputStream.toByteArray());
+                this.snapshot.set(snapshot);
+            }
+            return snapshot;
         }
-        return (boolean) excludeFromPush;
     }
 
-    @SuppressWarnings("unchecked")
-    public void filterOutNullDisableConsentExplanations(List<MetaData> identityProviders) {
-        identityProviders.forEach(idp -> {
-            Object disableConsentData = idp.getData().get("disableConsent");
-            if (disableConsentData instanceof List) {
-                List disableConsent = (List) disableConsentData;
-                disableConsent.forEach(disableConsentEntry -> {
-                    if (disableConsentEntry instanceof Map) {
-                        Map<String, Object> disableConsentMap = (Map) disableConsentEntry;
-                        disableConsentMap.entrySet().removeIf(entry -> entry.getValue() == null);
+    /**
+     * Reads all connections that need to be pushed one at a time with a cursor and hands them to the consumer in
+     * the EngineBlock format, so the federation never has to be in memory as a whole. The connections are read from
+     * the PushView when enabled and formatted on the fly otherwise.
+     */
+    private void forEachConnection(PushTimings timings, Consumer<PushConnection> consumer) {
+        Stream.of(EntityType.SP, EntityType.RP, EntityType.IDP)
+                .filter(entityType -> !excludeOidcRP || !entityType.equals(EntityType.RP))
+                .map(EntityType::getType)
+                .forEach(type -> {
+                    Consumer<PushConnection> included = connection -> {
+                        if (this.include(connection)) {
+                            consumer.accept(connection);
+                        }
+                    };
+                    if (pushView.isEnabled()) {
+                        timings.time(LOAD, () -> {
+                            pushView.synchronize(type);
+                            return type;
+                        });
+                        pushView.forEach(type, timings, included);
+                    } else {
+                        this.formatConnections(type, timings, included);
                     }
                 });
+    }
+
+    private boolean include(PushConnection connection) {
+        if (connection.isExcludeFromPush()) {
+            return false;
+        }
+        return !(excludeEduGainImported && EntityType.SP.getType().equals(connection.getType()) &&
+                connection.isImportedFromEdugain() && !connection.isPushEnabled());
+    }
+
+    /**
+     * The entities are formatted in batches. Each batch is formatted in parallel and handed to the consumer in cursor
+     * order, which keeps the result deterministic and the memory usage bounded by the batch size.
+     */
+    private void formatConnections(String type, PushTimings timings, Consumer<PushConnection> consumer) {
+        List<MetaData> batch = new ArrayList<>(formatBatchSize);
+        this.forEachMetaData(type, PushView.pushQuery(), timings, metaData -> {
+            batch.add(metaData);
+            if (batch.size() == formatBatchSize) {
+                this.formatBatch(type, batch, timings, consumer);
+                batch.clear();
             }
         });
+        this.formatBatch(type, batch, timings, consumer);
+    }
+
+    private void formatBatch(String type, List<MetaData> batch, PushTimings timings, Consumer<PushConnection> consumer) {
+        List<PushConnection> connections = timings.time(FORMAT, () -> pushView.connections(type, batch));
+        connections.forEach(consumer);
+    }
+
+    private void forEachMetaData(String type, Query query, PushTimings timings, Consumer<MetaData> consumer) {
+        try (CloseableIterator<MetaData> iterator = timings.time(LOAD, () ->
+                metaDataRepository.getMongoTemplate().stream(query, MetaData.class, type))) {
+            while (true) {
+                MetaData metaData = timings.time(LOAD, () -> iterator.hasNext() ? iterator.next() : null);
+                if (metaData == null) {
+                    break;
+                }
+                consumer.accept(metaData);
+            }
+        }
+    }
+
+    /**
+     * OIDC-NG receives the complete client, except for the administrative fields it has no use for.
+     */
+    private static Query oidcPushQuery() {
+        Query query = new Query();
+        Stream.of("revisionnote", "notes", "manipulation").forEach(key -> query.fields().exclude("data." + key));
+        return query;
+    }
+
+    private void writeOidcClients(OutputStream outputStream, Map<String, Scope> scopesMapped, PushTimings timings)
+            throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartArray();
+        this.forEachMetaData(EntityType.RP.getType(), oidcPushQuery(), timings, oidcClient -> {
+            timings.time(FORMAT, () -> {
+                this.transformScopes(oidcClient, scopesMapped);
+                return oidcClient;
+            });
+            long start = System.nanoTime();
+            try {
+                generator.writeObject(oidcClient);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                timings.add(SERIALIZE, System.nanoTime() - start);
+            }
+        });
+        generator.writeEndArray();
+        generator.close();
+    }
+
+    private void writeConnections(OutputStream outputStream, PushDelta pushDelta, boolean deltaPush,
+                                  PushTimings timings) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartObject();
+        generator.writeObjectFieldStart("connections");
+        this.forEachConnection(timings, connection -> {
+            boolean changed = pushDelta.register(connection.getId(), connection.getFingerprint());
+            if (changed || !deltaPush) {
+                long start = System.nanoTime();
+                try {
+                    //The connection is already serialized by the PushView
+                    generator.writeFieldName(connection.getId());
+                    generator.writeRawValue(connection.getJson());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    timings.add(SERIALIZE, System.nanoTime() - start);
+                }
+            }
+        });
+        generator.writeEndObject();
+        if (deltaPush) {
+            generator.writeObjectField("removed", pushDelta.getRemoved());
+        }
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    private static void writeBody(ClientHttpRequest request, PushCompression compression, PushBytes bytes,
+                                  StreamingHttpOutputMessage.Body body) throws IOException {
+        HttpHeaders headers = request.getHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        compression.contentEncoding().ifPresent(contentEncoding ->
+                headers.set(HttpHeaders.CONTENT_ENCODING, contentEncoding));
+        StreamingHttpOutputMessage.Body countingBody = outputStream -> {
+            CountingOutputStream compressed = new CountingOutputStream(new CloseShieldOutputStream(outputStream));
+            CountingOutputStream uncompressed = new CountingOutputStream(compression.compress(compressed));
+            body.writeTo(uncompressed);
+            //Finishes the compression, but the request body itself is closed by the request
+            uncompressed.close();
+            outputStream.flush();
+            bytes.add(uncompressed.getByteCount(), compressed.getByteCount());
+        };
+        if (request instanceof StreamingHttpOutputMessage) {
+            ((StreamingHttpOutputMessage) request).setBody(countingBody);
+        } else {
+            countingBody.writeTo(request.getBody());
+        }
+    }
+
+    private Map<String, String> previousFingerprints() {
+        return metaDataRepository.getMongoTemplate().findAll(PushFingerprint.class).stream()
+                .collect(toMap(PushFingerprint::getId, PushFingerprint::getFingerprint));
+    }
+
+    private void saveFingerprints(PushDelta pushDelta) {
+        if (pushDelta.isEmpty()) {
+            return;
+        }
+        MongoTemplate mongoTemplate = metaDataRepository.getMongoTemplate();
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PushFingerprint.class);
+        pushDelta.changedFingerprints().forEach(pushFingerprint -> bulkOperations.upsert(
+                Query.query(Criteria.where("_id").is(pushFingerprint.getId())),
+                Update.update("fingerprint", pushFingerprint.getFingerprint())));
+        if (!pushDelta.getRemoved().isEmpty()) {
+            bulkOperations.remove(Query.query(Criteria.where("_id").in(pushDelta.getRemoved())));
+        }
+        bulkOperations.execute();
     }
 
-    private ClientHttpRequestFactory getRequestFactory(String user, String password) throws MalformedURLException {
+    private ClientHttpRequestFactory getRequestFactory(String user, String password, long timeoutSeconds)
+            throws MalformedURLException {
         HttpClientBuilder httpClientBuilder = HttpClientBuilder.create().evictExpiredConnections()
                 .evictIdleConnections(10l, TimeUnit.SECONDS);
         BasicCredentialsProvider basicCredentialsProvider = new BasicCredentialsProvider();
         basicCredentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, password));
         httpClientBuilder.setDefaultCredentialsProvider(basicCredentialsProvider);
         CloseableHttpClient httpClient = httpClientBuilder.build();
-        return new PreemptiveAuthenticationHttpComponentsClientHttpRequestFactory(httpClient, pushUri);
+        PreemptiveAuthenticationHttpComponentsClientHttpRequestFactory requestFactory =
+                new PreemptiveAuthenticationHttpComponentsClientHttpRequestFactory(httpClient, pushUri);
+        //Stream the request body instead of buffering the complete push in memory
+        requestFactory.setBufferRequestBody(false);
+        requestFactory.setReadTimeout((int) TimeUnit.SECONDS.toMillis(timeoutSeconds));
+        return requestFactory;
     }
 }
@@ -1,6 +1,7 @@
 package manage.control;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import manage.api.APIUser;
 import manage.conf.MetaDataAutoConfiguration;
 import manage.exception.DuplicateEntityIdException;
@@ -13,17 +14,23 @@ import manage.hook.MetaDataHook;
 import manage.model.DashboardConnectOption;
 import manage.model.EntityType;
 import manage.model.Import;
+import manage.model.KeysetPage;
 import manage.model.MetaData;
 import manage.model.MetaDataKeyDelete;
 import manage.model.MetaDataUpdate;
 import manage.model.RevisionRestore;
+import manage.model.RevisionSummary;
 import manage.model.Scope;
 import manage.model.ServiceProvider;
 import manage.model.StatsEntry;
+import manage.model.TypeStats;
 import manage.model.XML;
 import manage.oidc.Client;
 import manage.oidc.OpenIdConnect;
+import manage.push.PushJob;
+import manage.push.PushScheduler;
 import manage.repository.MetaDataRepository;
+import manage.repository.StatsService;
 import manage.shibboleth.FederatedUser;
 import org.everit.json.schema.ValidationException;
 import org.slf4j.Logger;
@@ -38,7 +45,9 @@ import org.springframework.core.io.ResourceLoader;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -53,11 +62,16 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
@@ -71,9 +85,11 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
@@ -82,6 +98,7 @@ import static manage.api.Scope.TEST;
 import static manage.hook.OpenIdConnectHook.OIDC_CLIENT_KEY;
 import static manage.hook.OpenIdConnectHook.translateServiceProviderEntityId;
 import static manage.mongo.MongoChangelog.REVISION_POSTFIX;
+import static manage.push.PushScheduler.PUSH_JOB_ID_HEADER;
 
 @RestController
 @SuppressWarnings("unchecked")
@@ -93,6 +110,14 @@ public class MetaDataController {
 
     private static final String DASHBOARD_CONNECT_OPTION = "coin:dashboard_connect_option";
 
+    private static final int TEXT_SEARCH_MAX_LIMIT = 100;
+
+    private static final String DEFAULT_PAGE_SIZE = "100";
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
     private static final Logger LOG = LoggerFactory.getLogger(MetaDataController.class);
 
     private static final List<String> entityTypesSuggestions = Arrays.asList(
@@ -109,7 +134,13 @@ public class MetaDataController {
     private Environment environment;
 
     @Autowired
-    DatabaseController databaseController;
+    PushScheduler pushScheduler;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    StatsService statsService;
 
     @Autowired
     public MetaDataController(MetaDataRepository metaDataRepository,
@@ -180,7 +211,12 @@ public class MetaDataController {
 
     @GetMapping("/client/metadata/stats")
     public List<StatsEntry> stats() {
-        return metaDataRepository.stats();
+        return statsService.collectionStats();
+    }
+
+    @GetMapping("/client/metadata/stats/types")
+    public List<TypeStats> typeStats() {
+        return statsService.typeStats();
     }
 
     @PreAuthorize("hasRole('WRITE')")
@@ -596,6 +632,42 @@ public class MetaDataController {
         return metaDataRepository.revisions(type.concat(REVISION_POSTFIX), parentId);
     }
 
+    @GetMapping("/client/revisions/{type}/{parentId}/page")
+    public KeysetPage<MetaData> revisionsPage(@PathVariable("type") String type,
+                                              @PathVariable("parentId") String parentId,
+                                              @RequestParam(required = false, defaultValue = DEFAULT_PAGE_SIZE) int pageSize,
+                                              @RequestParam(required = false) String continuationToken,
+                                              @RequestParam(required = false, defaultValue = "false") boolean total) {
+        return metaDataRepository.revisionsPage(type.concat(REVISION_POSTFIX), parentId, pageSize, continuationToken,
+                total);
+    }
+
+    @GetMapping("/client/revisions/{type}/{parentId}/summary")
+    public KeysetPage<RevisionSummary> revisionSummaries(@PathVariable("type") String type,
+                                                         @PathVariable("parentId") String parentId,
+                                                         @RequestParam(required = false, defaultValue = DEFAULT_PAGE_SIZE) int pageSize,
+                                                         @RequestParam(required = false) String continuationToken,
+                                                         @RequestParam(required = false, defaultValue = "false") boolean total) {
+        return metaDataRepository.revisionSummaries(type.concat(REVISION_POSTFIX), parentId, pageSize,
+                continuationToken, total);
+    }
+
+    @GetMapping("/client/revision/{type}/{id}")
+    public MetaData revision(@PathVariable("type") String type, @PathVariable("id") String id) {
+        String revisionType = type.concat(REVISION_POSTFIX);
+        MetaData revision = metaDataRepository.findById(id, revisionType);
+        checkNull(revisionType, id, revision);
+        return revision;
+    }
+
+    @GetMapping({"/client/autocomplete/{type}/page", "/internal/autocomplete/{type}/page"})
+    public KeysetPage<Map> allEntitiesPage(@PathVariable("type") String type,
+                                           @RequestParam(required = false, defaultValue = DEFAULT_PAGE_SIZE) int pageSize,
+                                           @RequestParam(required = false) String continuationToken,
+                                           @RequestParam(required = false, defaultValue = "false") boolean total) {
+        return metaDataRepository.allPage(type, pageSize, continuationToken, total);
+    }
+
 
     @GetMapping("/client/autocomplete/{type}")
     public Map<String, List<Map>> autoCompleteEntities(@PathVariable("type") String type, @RequestParam("query") String query) {
@@ -635,18 +707,41 @@ public class MetaDataController {
     public List<Map> searchEntities(@PathVariable("type") String type,
                                     @RequestBody Map<String, Object> properties,
                                     @RequestParam(required = false, defaultValue = "false") boolean nested) {
-        List requestedAttributes = (List) properties.getOrDefault(REQUESTED_ATTRIBUTES, new
-                ArrayList<String>());
-        Boolean allAttributes = (Boolean) properties.getOrDefault(ALL_ATTRIBUTES, false);
-        Boolean logicalOperatorIsAnd = (Boolean) properties.getOrDefault(LOGICAL_OPERATOR_IS_AND, true);
-        properties.remove(REQUESTED_ATTRIBUTES);
-        properties.remove(ALL_ATTRIBUTES);
-        properties.remove(LOGICAL_OPERATOR_IS_AND);
-        List<Map> search = metaDataRepository.search(type, properties, requestedAttributes, allAttributes,
-                logicalOperatorIsAnd);
+        SearchOptions options = SearchOptions.extract(properties);
+        List<Map> search = metaDataRepository.search(type, properties, options.requestedAttributes,
+                options.allAttributes, options.logicalOperatorIsAnd);
         return nested ? search.stream().map(m -> exporter.nestMetaData(m, type)).collect(toList()) : search;
     }
 
+    @PostMapping(value = {"/client/search/{type}/stream", "/internal/search/{type}/stream"}, produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> searchEntitiesStream(@PathVariable("type") String type,
+                                                                      @RequestBody Map<String, Object> properties,
+                                                                      @RequestParam(required = false, defaultValue = "false") boolean nested,
+                                                                      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        SearchOptions options = SearchOptions.extract(properties);
+        return ndjson(acceptEncoding, writer -> metaDataRepository.streamSearch(type, properties,
+                options.requestedAttributes, options.allAttributes, options.logicalOperatorIsAnd,
+                m -> writer.accept(nested ? exporter.nestMetaData(m, type) : m)));
+    }
+
+    @PostMapping({"/client/search/{type}/page", "/internal/search/{type}/page"})
+    public KeysetPage<Map> searchEntitiesPage(@PathVariable("type") String type,
+                                              @RequestBody Map<String, Object> properties,
+                                              @RequestParam(required = false, defaultValue = DEFAULT_PAGE_SIZE) int pageSize,
+                                              @RequestParam(required = false) String continuationToken,
+                                              @RequestParam(required = false, defaultValue = "false") boolean total) {
+        SearchOptions options = SearchOptions.extract(properties);
+        return metaDataRepository.searchPage(type, properties, options.requestedAttributes, options.allAttributes,
+                options.logicalOperatorIsAnd, pageSize, continuationToken, total);
+    }
+
+    @GetMapping({"/client/search/{type}/text", "/internal/search/{type}/text"})
+    public List<Map> textSearchEntities(@PathVariable("type") String type,
+                                        @RequestParam("query") String query,
+                                        @RequestParam(required = false, defaultValue = "25") int limit) {
+        return metaDataRepository.textSearch(type, query, Math.max(1, Math.min(limit, TEXT_SEARCH_MAX_LIMIT)));
+    }
+
     @GetMapping({"/client/rawSearch/{type}", "/internal/rawSearch/{type}"})
     public List<MetaData> rawSearch(@PathVariable("type") String type, @RequestParam("query") String query) throws
             UnsupportedEncodingException {
@@ -656,6 +751,59 @@ public class MetaDataController {
         return metaDataRepository.findRaw(type, query);
     }
 
+    @GetMapping(value = {"/client/rawSearch/{type}/stream", "/internal/rawSearch/{type}/stream"}, produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> rawSearchStream(@PathVariable("type") String type,
+                                                                 @RequestParam("query") String query,
+                                                                 @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) throws
+            UnsupportedEncodingException {
+        String decodedQuery = query.startsWith("%") ? URLDecoder.decode(query, "UTF-8") : query;
+        return ndjson(acceptEncoding, writer -> metaDataRepository.streamRaw(type, decodedQuery, writer::accept));
+    }
+
+    /**
+     * Writes every result as one line of JSON directly from the Mongo cursor, so the results are never all in memory.
+     * The response is gzipped when the client accepts it.
+     */
+    private ResponseEntity<StreamingResponseBody> ndjson(String acceptEncoding, Consumer<Consumer<Object>> producer) {
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        StreamingResponseBody body = outputStream -> {
+            OutputStream out = gzip ? new GZIPOutputStream(outputStream, STREAM_BUFFER_SIZE) :
+                    new BufferedOutputStream(outputStream, STREAM_BUFFER_SIZE);
+            producer.accept(result -> {
+                try {
+                    out.write(objectMapper.writeValueAsBytes(result));
+                    out.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (gzip) {
+                ((GZIPOutputStream) out).finish();
+            }
+            out.flush();
+        };
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NDJSON))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return builder.body(body);
+    }
+
+    @GetMapping({"/client/rawSearch/{type}/page", "/internal/rawSearch/{type}/page"})
+    public KeysetPage<MetaData> rawSearchPage(@PathVariable("type") String type,
+                                              @RequestParam("query") String query,
+                                              @RequestParam(required = false, defaultValue = DEFAULT_PAGE_SIZE) int pageSize,
+                                              @RequestParam(required = false) String continuationToken,
+                                              @RequestParam(required = false, defaultValue = "false") boolean total) throws
+            UnsupportedEncodingException {
+        if (query.startsWith("%")) {
+            query = URLDecoder.decode(query, "UTF-8");
+        }
+        return metaDataRepository.findRawPage(type, query, pageSize, continuationToken, total);
+    }
+
     private MetaData validate(MetaData metaData) throws JsonProcessingException {
         metaData = metaDataHook.preValidate(metaData);
         metaDataAutoConfiguration.validate(metaData.getData(), metaData.getType());
@@ -690,15 +838,17 @@ public class MetaDataController {
         this.addAllowedEntity(sp, idpEntityId, connectionData, apiUser);
         this.addAllowedEntity(idp, spEntityId, connectionData, apiUser);
 
-        databaseController.doPush();
+        PushJob pushJob = pushScheduler.schedule(apiUser.getName());
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(PUSH_JOB_ID_HEADER, pushJob.getId());
 
-        return new HttpEntity<>(HttpStatus.OK);
+        return new HttpEntity<>(HttpStatus.OK, headers);
     }
 
 
     @Secured("WRITE")
     @PutMapping("internal/oidc/merge")
-    public List<MetaData> oidcMerge(@RequestBody List<String> spEntityIds, APIUser apiUser) throws JsonProcessingException {
+    public ResponseEntity<List<MetaData>> oidcMerge(@RequestBody List<String> spEntityIds, APIUser apiUser) throws JsonProcessingException {
         LOG.debug("Starting OIDC Merge by {} for spEntityIds {}", apiUser.getName(), spEntityIds);
 
         List<MetaData> metaDataResult = new ArrayList<>();
@@ -770,8 +920,8 @@ public class MetaDataController {
             metaDataResult.add(oidcRP);
 
             //Now update all IdP's that have the SP in the allowedEntities.name
-            List<MetaData> identityProviders = metaDataRepository.findRaw(EntityType.IDP.getType(),
-                    String.format("{\"data.%s.name\" : \"%s\"}", "allowedEntities", spEntityId));
+            List<MetaData> identityProviders = metaDataRepository.findReferences(EntityType.IDP.getType(),
+                    Collections.singletonList("allowedEntities"), spEntityId);
             identityProviders.forEach(idp -> {
                 MetaData previous = metaDataRepository.findById(idp.getId(), idp.getType());
                 previous.revision(UUID.randomUUID().toString());
@@ -788,10 +938,11 @@ public class MetaDataController {
         }
         //EB needs to receive the new entry
         if (metaDataResult.size() > 0) {
-            databaseController.doPush();
+            PushJob pushJob = pushScheduler.schedule(apiUser.getName());
+            return ResponseEntity.ok().header(PUSH_JOB_ID_HEADER, pushJob.getId()).body(metaDataResult);
         }
 
-        return metaDataResult;
+        return ResponseEntity.ok(metaDataResult);
     }
 
     private void addAllowedEntity(MetaData metaData, String entityId, Map<String, String> connectionData, APIUser apiUser) throws JsonProcessingException {
@@ -814,4 +965,34 @@ public class MetaDataController {
         }
         return metaDataRepository.findById((String) searchResults.get(0).get("_id"), type);
     }
+
+    /**
+     * The options of a search that are posted together with the properties to search on.
+     */
+    private static class SearchOptions {
+
+        private final List requestedAttributes;
+        private final Boolean allAttributes;
+        private final Boolean logicalOperatorIsAnd;
+
+        private SearchOptions(List requestedAttributes, Boolean allAttributes, Boolean logicalOperatorIsAnd) {
+            this.requestedAttributes = requestedAttributes;
+            this.allAttributes = allAttributes;
+            this.logicalOperatorIsAnd = logicalOperatorIsAnd;
+        }
+
+        /**
+         * Removes the options from the properties, so only the properties to search on remain.
+         */
+        private static SearchOptions extract(Map<String, Object> properties) {
+            List requestedAttributes = (List) properties.getOrDefault(REQUESTED_ATTRIBUTES, new
+                    ArrayList<String>());
+            Boolean allAttributes = (Boolean) properties.getOrDefault(ALL_ATTRIBUTES, false);
+            Boolean logicalOperatorIsAnd = (Boolean) properties.getOrDefault(LOGICAL_OPERATOR_IS_AND, true);
+            properties.remove(REQUESTED_ATTRIBUTES);
+            properties.remove(ALL_ATTRIBUTES);
+            properties.remove(LOGICAL_OPERATOR_IS_AND);
+            return new SearchOptions(requestedAttributes, allAttributes, logicalOperatorIsAnd);
+        }
+    }
 }
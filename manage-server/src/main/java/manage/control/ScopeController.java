@@ -9,14 +9,13 @@ import manage.exception.ScopeInUseException;
 import manage.model.EntityType;
 import manage.model.MetaData;
 import manage.model.Scope;
+import manage.repository.MetaDataRepository;
+import manage.repository.ReferenceIndex;
 import manage.repository.ScopeRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -28,6 +27,7 @@ import org.springframework.web.bind.annotation.RestController;
 
 import javax.websocket.server.PathParam;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,16 +42,16 @@ public class ScopeController {
     private static final Logger LOG = LoggerFactory.getLogger(ScopeController.class);
     private ObjectMapper objectMapper;
 
-    private MongoTemplate mongoTemplate;
+    private MetaDataRepository metaDataRepository;
     private ScopeRepository scopeRepository;
     private List<String> supportedLanguages;
 
     @Autowired
-    public ScopeController(MongoTemplate mongoTemplate,
+    public ScopeController(MetaDataRepository metaDataRepository,
                            ScopeRepository scopeRepository,
                            ObjectMapper objectMapper,
                            @Value("${product.supported_languages}") String supportedLanguages) {
-        this.mongoTemplate = mongoTemplate;
+        this.metaDataRepository = metaDataRepository;
         this.scopeRepository = scopeRepository;
         this.objectMapper = objectMapper;
         this.supportedLanguages = Stream.of(supportedLanguages.split(",")).map(String::trim).collect(toList());
@@ -117,8 +117,8 @@ public class ScopeController {
     }
 
     private void checkScopeInUse(Scope scope) throws JsonProcessingException {
-        Query query = Query.query(Criteria.where("data.metaDataFields.scopes").is(scope.getName()));
-        List<MetaData> metaData = mongoTemplate.find(query, MetaData.class, EntityType.RP.getType());
+        List<MetaData> metaData = metaDataRepository.scanReferences(EntityType.RP.getType(),
+                Collections.singletonList(ReferenceIndex.SCOPES), scope.getName());
         if (!metaData.isEmpty()) {
             List<Map<String, String>> message = new ArrayList<>();
             metaData.forEach(md -> {
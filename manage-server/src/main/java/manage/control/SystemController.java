@@ -1,39 +1,30 @@
 package manage.control;
 
 import manage.api.APIUser;
+import manage.api.Scope;
 import manage.conf.Features;
 import manage.exception.EndpointNotAllowed;
-import manage.hook.EntityIdReconcilerHook;
-import manage.model.EntityType;
-import manage.model.MetaData;
+import manage.exception.ResourceNotFoundException;
 import manage.model.OrphanMetaData;
+import manage.push.PushJob;
+import manage.push.PushScheduler;
 import manage.repository.MetaDataRepository;
+import manage.repository.OrphanDetector;
 import manage.shibboleth.FederatedUser;
 import manage.validations.MetaDataValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.BasicQuery;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.util.CollectionUtils;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
-import static java.util.stream.Collectors.toList;
 
 @RestController
 @SuppressWarnings("unchecked")
@@ -47,6 +38,12 @@ public class SystemController {
     @Autowired
     private DatabaseController databaseController;
 
+    @Autowired
+    private PushScheduler pushScheduler;
+
+    @Autowired
+    private OrphanDetector orphanDetector;
+
     @Autowired
     public SystemController(MetaDataRepository metaDataRepository,
                             MetaDataValidator metaDataValidator) {
@@ -70,6 +67,29 @@ public class SystemController {
         return databaseController.doPush();
     }
 
+    @PreAuthorize("hasRole('PUSH')")
+    @PostMapping("/internal/push")
+    public ResponseEntity<PushJob> pushInternalAsync(APIUser apiUser) {
+        LOG.info("Asynchronous push requested by {}", apiUser.getName());
+        return ResponseEntity.accepted().body(pushScheduler.schedule(apiUser.getName()));
+    }
+
+    /**
+     * Push jobs are also started by the WRITE endpoints - e.g. connectWithoutInteraction - so users with the WRITE
+     * scope and the users that requested the push can poll the job as well.
+     */
+    @GetMapping("/internal/push/{jobId}")
+    public PushJob pushJob(@PathVariable("jobId") String jobId, APIUser apiUser) {
+        PushJob pushJob = pushScheduler.job(jobId)
+                .orElseThrow(() -> new ResourceNotFoundException(String.format("Push job %s does not exist", jobId)));
+        List<Scope> scopes = apiUser.getScopes();
+        if (!scopes.contains(Scope.PUSH) && !scopes.contains(Scope.WRITE) &&
+                !pushJob.getRequestedBy().contains(apiUser.getName())) {
+            throw new EndpointNotAllowed();
+        }
+        return pushJob;
+    }
+
     @GetMapping("/client/playground/validate")
     public Map<String, Object> validate(FederatedUser federatedUser) {
         if (!federatedUser.featureAllowed(Features.VALIDATION)) {
@@ -91,79 +111,11 @@ public class SystemController {
     }
 
     private void doDeleteOrphans() {
-        List<OrphanMetaData> orphans = this.orphans();
-        orphans.forEach(orphanMetaData -> {
-            MetaData metaData = metaDataRepository.findById(orphanMetaData.getId(), orphanMetaData.getCollection());
-            List<Map<String, Object>> entries =
-                    (List<Map<String, Object>>) metaData.getData().get(orphanMetaData.getReferencedCollectionName());
-
-            List<Map<String, Object>> newEntries = entries.stream().filter(entry -> !entry.get("name").equals
-                    (orphanMetaData.getMissingEntityId())).collect(Collectors.toList());
-            metaData.getData().put(orphanMetaData.getReferencedCollectionName(), newEntries);
-            MetaData previous = metaDataRepository.findById(metaData.getId(), orphanMetaData.getCollection());
-            previous.revision(UUID.randomUUID().toString());
-            metaDataRepository.save(previous);
-            metaData.promoteToLatest("System", "Removed reference to non-existent entityID");
-            metaDataRepository.update(metaData);
-
-        });
+        orphanDetector.deleteOrphans();
     }
 
     @GetMapping({"/client/playground/orphans", "/internal/playground/orphans"})
     public List<OrphanMetaData> orphans() {
-        return Stream.of(EntityType.values()).map(this::orphanMetaData)
-                .flatMap(Function.identity())
-                .collect(toList());
-    }
-
-    private Stream<OrphanMetaData> orphanMetaData(EntityType type) {
-        Query query = new Query();
-        query.fields()
-                .include("data.entityid")
-                .include("type")
-                .include("data.metaDataFields.name:en")
-                .include("data.allowedEntities.name")
-                .include("data.allowedResourceServers.name")
-                .include("data.stepupEntities.name")
-                .include("data.mfaEntities.name")
-                .include("data.disableConsent.name");
-
-        query.addCriteria(new Criteria().orOperator(
-                Criteria.where("data.allowedEntities").exists(true),
-                Criteria.where("data.disableConsent").exists(true),
-                Criteria.where("data.stepupEntities").exists(true),
-                Criteria.where("data.mfaEntities").exists(true),
-                Criteria.where("data.allowedResourceServers").exists(true)));
-
-        MongoTemplate mongoTemplate = metaDataRepository.getMongoTemplate();
-        List<MetaData> metaDataWithReferences = mongoTemplate.find(query, MetaData.class, type.getType());
-
-        Map<String, Map<String, List<MetaData>>> groupedByEntityIdReference = new HashMap<>();
-        Stream.of("allowedEntities", "disableConsent", "stepupEntities", "mfaEntities", "allowedResourceServers").forEach(propertyName -> {
-            metaDataWithReferences.stream().forEach(metaData -> {
-                List<Map<String, Object>> entries = (List<Map<String, Object>>) metaData.getData().get(propertyName);
-                if (!CollectionUtils.isEmpty(entries)) {
-                    entries.forEach(ae -> groupedByEntityIdReference
-                            .computeIfAbsent((String) ae.get("name"), k -> new HashMap<>())
-                            .computeIfAbsent(propertyName, m -> new ArrayList<>())
-                            .add(metaData));
-                }
-            });
-        });
-        List<String> types = EntityIdReconcilerHook.metaDataTypesForeignKeyRelations(type.getType());
-        return groupedByEntityIdReference.entrySet().stream()
-                .filter(entry -> types.stream()
-                        .noneMatch(entityType -> mongoTemplate.exists(new BasicQuery("{\"data.entityid\":\"" + entry.getKey() + "\"}"), entityType)))
-                .map(entry -> entry.getValue().entrySet().stream().map(m ->
-                        m.getValue().stream().map(metaData -> new OrphanMetaData(
-                                entry.getKey(),
-                                (String) metaData.getData().get("entityid"),
-                                (String) Map.class.cast(metaData.getData().get("metaDataFields")).get("name:en"),
-                                m.getKey(),
-                                metaData.getId(),
-                                type.getType()
-                        ))))
-                .flatMap(Function.identity())
-                .flatMap(Function.identity());
+        return orphanDetector.orphans();
     }
 }
@@ -0,0 +1,12 @@
+package manage.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class InvalidContinuationTokenException extends RuntimeException {
+
+    public InvalidContinuationTokenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package manage.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class UnsearchableRevisionFieldException extends RuntimeException {
+
+    public UnsearchableRevisionFieldException(String message) {
+        super(message);
+    }
+}
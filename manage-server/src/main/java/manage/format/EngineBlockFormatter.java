@@ -14,7 +14,9 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
@@ -34,6 +36,12 @@ public class EngineBlockFormatter {
 
     private static final int BEGIN_INDEX = "metadata:".length();
 
+    private static final int MAX_CONTACTS = 4;
+    private static final int MAX_NAME_ID_FORMATS = 3;
+    private static final int MAX_SINGLE_SIGN_ON_SERVICES = 10;
+    private static final int MAX_SHIBMD_SCOPES = 10;
+    private static final int MAX_ASSERTION_CONSUMER_SERVICES = 30;
+
     static {
         commonAttributes.put("entityid", of("name"));
         commonAttributes.put("metadata:name:nl", empty());
@@ -87,6 +95,39 @@ public class EngineBlockFormatter {
         idpAttributes.put("metadata:coin:hidden", empty());
     }
 
+    /**
+     * All the paths in a MetaData document that are read by this formatter. Used as a field projection, so only the
+     * data needed for the push is read from the database.
+     */
+    public static Set<String> projectedFields() {
+        Set<String> fields = new TreeSet<>();
+        Stream.of(commonAttributes, spAttributes, idpAttributes).flatMap(attributes -> attributes.keySet().stream())
+                .forEach(key -> fields.add(key.startsWith("metadata:") ?
+                        metaDataField(key.substring(BEGIN_INDEX)) : "data." + key));
+
+        Stream.of("allowedEntities", "allowedall", "disableConsent", "stepupEntities", "mfaEntities", "arp")
+                .forEach(key -> fields.add("data." + key));
+
+        Stream.of("logo:0:height", "logo:0:url", "logo:0:width", "SingleLogoutService_Location",
+                "SingleLogoutService_Binding", "redirect.sign")
+                .forEach(key -> fields.add(metaDataField(key)));
+        IntStream.range(0, MAX_CONTACTS).forEach(i -> Stream.of("contactType", "emailAddress", "telephoneNumber",
+                "givenName", "surName").forEach(key -> fields.add(metaDataField("contacts:" + i + ":" + key))));
+        IntStream.range(0, MAX_NAME_ID_FORMATS).forEach(i -> fields.add(metaDataField("NameIDFormats:" + i)));
+        IntStream.range(0, MAX_SINGLE_SIGN_ON_SERVICES).forEach(i -> Stream.of("Binding", "Location")
+                .forEach(key -> fields.add(metaDataField("SingleSignOnService:" + i + ":" + key))));
+        IntStream.range(0, MAX_SHIBMD_SCOPES).forEach(i -> Stream.of("allowed", "regexp")
+                .forEach(key -> fields.add(metaDataField("shibmd:scope:" + i + ":" + key))));
+        IntStream.range(0, MAX_ASSERTION_CONSUMER_SERVICES).forEach(i -> Stream.of("Binding", "Location", "index")
+                .forEach(key -> fields.add(metaDataField("AssertionConsumerService:" + i + ":" + key))));
+        return fields;
+    }
+
+    private static String metaDataField(String key) {
+        //Dots in map keys are stored as '@', see MongoConverter
+        return "data.metaDataFields." + key.replace(".", "@");
+    }
+
     public Map<String, Object> parseServiceProvider(MetaData metaDataContainer) {
         Map<String, Object> source = metaDataContainer.getData();
 
@@ -193,7 +234,7 @@ public class EngineBlockFormatter {
         final Map<String, Object> metadata = (Map<String, Object>) result.computeIfAbsent("metadata", key -> new
                 TreeMap<>());
         Map<String, Object> metaDataFields = (Map<String, Object>) source.get("metaDataFields");
-        IntStream.range(0, 4).forEach(i -> {
+        IntStream.range(0, MAX_CONTACTS).forEach(i -> {
             String contactType = (String) metaDataFields.get("contacts:" + i + ":contactType");
             String emailAddress = (String) metaDataFields.get("contacts:" + i + ":emailAddress");
             String telephoneNumber = (String) metaDataFields.get("contacts:" + i + ":telephoneNumber");
@@ -272,7 +313,7 @@ public class EngineBlockFormatter {
                 TreeMap<>());
         Map<String, Object> metaDataFields = (Map<String, Object>) source.get("metaDataFields");
 
-        IntStream.range(0, 3).forEach(i -> {
+        IntStream.range(0, MAX_NAME_ID_FORMATS).forEach(i -> {
             String nameIdFormat = (String) metaDataFields.get("NameIDFormats:" + i);
             if (hasText(nameIdFormat)) {
                 Set<String> nameIDFormats = (Set<String>) metadata.computeIfAbsent(
@@ -317,7 +358,7 @@ public class EngineBlockFormatter {
         final Map<String, Object> metadata = (Map<String, Object>) result.computeIfAbsent("metadata", key -> new
                 TreeMap<>());
         Map<String, Object> metaDataFields = (Map<String, Object>) source.get("metaDataFields");
-        IntStream.range(0, 10).forEach(i -> {
+        IntStream.range(0, MAX_SINGLE_SIGN_ON_SERVICES).forEach(i -> {
             String binding = (String) metaDataFields.get("SingleSignOnService:" + i + ":Binding");
             String location = (String) metaDataFields.get("SingleSignOnService:" + i + ":Location");
 
@@ -337,7 +378,7 @@ public class EngineBlockFormatter {
         final Map<String, Object> metadata = (Map<String, Object>) result.computeIfAbsent("metadata", key -> new
                 TreeMap<>());
         Map<String, Object> metaDataFields = (Map<String, Object>) source.get("metaDataFields");
-        IntStream.range(0, 10).forEach(i -> {
+        IntStream.range(0, MAX_SHIBMD_SCOPES).forEach(i -> {
             String allowed = parseValueToString(metaDataFields.get("shibmd:scope:" + i + ":allowed"));
             String regexp = parseValueToString(metaDataFields.get("shibmd:scope:" + i + ":regexp"));
 
@@ -361,7 +402,7 @@ public class EngineBlockFormatter {
         final Map<String, Object> metadata = (Map<String, Object>) result.computeIfAbsent("metadata", key -> new
                 TreeMap<>());
         Map<String, Object> metaDataFields = (Map<String, Object>) source.get("metaDataFields");
-        IntStream.range(0, 30).forEach(i -> {
+        IntStream.range(0, MAX_ASSERTION_CONSUMER_SERVICES).forEach(i -> {
             String binding = (String) metaDataFields.get("AssertionConsumerService:" + i + ":Binding");
             String location = (String) metaDataFields.get("AssertionConsumerService:" + i + ":Location");
             String index = parseValueToString(metaDataFields.get("AssertionConsumerService:" + i + ":index"));
@@ -10,10 +10,12 @@ import java.util.concurrent.atomic.AtomicReference;
 public class CompositeMetaDataHook implements MetaDataHook {
 
     private List<MetaDataHook> hooks;
+    private HookMetrics hookMetrics;
 
-    public CompositeMetaDataHook(List<MetaDataHook> hooks) {
+    public CompositeMetaDataHook(List<MetaDataHook> hooks, HookMetrics hookMetrics) {
         Assert.isTrue(!CollectionUtils.isEmpty(hooks), "Hooks may not be empty");
         this.hooks = hooks;
+        this.hookMetrics = hookMetrics;
     }
 
     @Override
@@ -23,34 +25,33 @@ public class CompositeMetaDataHook implements MetaDataHook {
 
     @Override
     public MetaData postGet(MetaData metaData) {
-        return this.callback(metaData, (md, hook) -> hook.postGet(md));
+        return this.callback("postGet", metaData, (md, hook) -> hook.postGet(md));
     }
 
     @Override
     public MetaData prePut(MetaData previous, MetaData newMetaData) {
-        AtomicReference<MetaData> ref = new AtomicReference<>(newMetaData);
-        hooks.stream().filter(hook -> hook.appliesForMetaData(newMetaData)).forEach(hook -> ref.set(hook.prePut(previous, ref.get())));
-        return ref.get();
+        return this.callback("prePut", newMetaData, (md, hook) -> hook.prePut(previous, md));
     }
 
     @Override
     public MetaData prePost(MetaData metaData) {
-        return this.callback(metaData, (md, hook) -> hook.prePost(md));
+        return this.callback("prePost", metaData, (md, hook) -> hook.prePost(md));
     }
 
     @Override
     public MetaData preDelete(MetaData metaData) {
-        return this.callback(metaData, (md, hook) -> hook.preDelete(md));
+        return this.callback("preDelete", metaData, (md, hook) -> hook.preDelete(md));
     }
 
     @Override
     public MetaData preValidate(MetaData metaData) {
-        return this.callback(metaData, (md, hook) -> hook.preValidate(md));
+        return this.callback("preValidate", metaData, (md, hook) -> hook.preValidate(md));
     }
 
-    private MetaData callback(MetaData metaData, Callback callback) {
+    private MetaData callback(String name, MetaData metaData, Callback callback) {
         AtomicReference<MetaData> ref = new AtomicReference<>(metaData);
-        hooks.stream().filter(hook -> hook.appliesForMetaData(metaData)).forEach(hook -> ref.set(callback.doHook(ref.get(), hook)));
+        hooks.stream().filter(hook -> hook.appliesForMetaData(metaData)).forEach(hook -> ref.set(
+                hookMetrics.time(hook, name, metaData.getType(), () -> callback.doHook(ref.get(), hook))));
         return ref.get();
     }
 
@@ -7,9 +7,12 @@ import org.springframework.util.CollectionUtils;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static manage.model.EntityType.IDP;
@@ -51,22 +54,32 @@ public class EntityIdConstraintsHook extends MetaDataHookAdapter {
         relationsToCheck.put("mfaEntities", Arrays.asList(SP, RP));
         relationsToCheck.put("allowedResourceServers", singletonList(RP));
 
+        //Resolve all references with one query per type instead of one query per reference
+        Map<EntityType, Set<String>> referencedEntityIds = new HashMap<>();
+        relationsToCheck.forEach((key, entityTypes) -> references(newMetaData, key).forEach(reference ->
+                entityTypes.forEach(entityType -> referencedEntityIds
+                        .computeIfAbsent(entityType, type -> new HashSet<>())
+                        .add(reference.get("name")))));
+        Map<EntityType, Set<String>> existingEntityIds = new HashMap<>();
+        referencedEntityIds.forEach((entityType, entityIds) ->
+                existingEntityIds.put(entityType, metaDataRepository.existingEntityIds(entityType.getType(), entityIds)));
+
         relationsToCheck.forEach((key, value) -> {
-            if (newMetaData.getData().containsKey(key)) {
-                List<Map<String, String>> references = (List<Map<String, String>>) newMetaData.getData().get(key);
-                if (!CollectionUtils.isEmpty(references)) {
-                    List<Map<String, String>> strippedReferences = references.stream()
-                            .filter(map -> value.stream()
-                                    .anyMatch(entityType ->
-                                            !CollectionUtils.isEmpty(
-                                                    metaDataRepository.findRaw(entityType.getType(),
-                                                            String.format("{\"data.entityid\" : \"%s\"}", map.get("name")))))
-                            ).collect(toList());
-                    newMetaData.getData().put(key, strippedReferences);
-                }
+            List<Map<String, String>> references = references(newMetaData, key);
+            if (!CollectionUtils.isEmpty(references)) {
+                List<Map<String, String>> strippedReferences = references.stream()
+                        .filter(map -> value.stream()
+                                .anyMatch(entityType -> existingEntityIds.get(entityType).contains(map.get("name"))))
+                        .collect(toList());
+                newMetaData.getData().put(key, strippedReferences);
             }
         });
         return newMetaData;
     }
 
+    private List<Map<String, String>> references(MetaData metaData, String key) {
+        List<Map<String, String>> references = (List<Map<String, String>>) metaData.getData().get(key);
+        return references == null ? emptyList() : references;
+    }
+
 }
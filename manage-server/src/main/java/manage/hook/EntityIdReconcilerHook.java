@@ -7,7 +7,6 @@ import manage.repository.MetaDataRepository;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
@@ -20,6 +19,11 @@ import static manage.model.EntityType.STT;
 @SuppressWarnings("unchecked")
 public class EntityIdReconcilerHook extends MetaDataHookAdapter {
 
+    private static final List<String> RENAME_RELATIONS =
+            asList("allowedEntities", "disableConsent", "allowedResourceServers", "stepupEntities", "mfaEntities");
+
+    private static final List<String> DELETE_RELATIONS = asList("allowedEntities", "disableConsent");
+
     private MetaDataRepository metaDataRepository;
 
     public EntityIdReconcilerHook(MetaDataRepository metaDataRepository) {
@@ -40,22 +44,17 @@ public class EntityIdReconcilerHook extends MetaDataHookAdapter {
             return newMetaData;
         }
         String metaDataType = newMetaData.getType();
-        List<String> types = metaDataTypesForeignKeyRelations(metaDataType);
-        asList("allowedEntities", "disableConsent", "allowedResourceServers", "stepupEntities", "mfaEntities").forEach(name ->
-                types.forEach(type -> {
-                    List<MetaData> references = metaDataRepository.findRaw(type,
-                            String.format("{\"data.%s.name\" : \"%s\"}", name, oldEntityId));
-
-                    String revisionNote = String.format("Updated after entityId rename of %s to %s", oldEntityId, newEntityId);
-
-                    references.forEach(metaData -> {
-                        List<Map<String, String>> entities = (List<Map<String, String>>) metaData.getData().getOrDefault(name, new ArrayList<>());
-                        entities.stream().filter(entry -> oldEntityId.equals(entry.get("name")))
-                                .findAny()
-                                .ifPresent(entry -> entry.put("name", newEntityId));
-                        this.revision(metaData, revisionNote);
-                    });
-                }));
+        String revisionNote = String.format("Updated after entityId rename of %s to %s", oldEntityId, newEntityId);
+        metaDataTypesForeignKeyRelations(metaDataType).forEach(type -> {
+            List<MetaData> references = metaDataRepository.findReferences(type, RENAME_RELATIONS, oldEntityId);
+            references.forEach(metaData -> RENAME_RELATIONS.forEach(name -> {
+                List<Map<String, String>> entities = (List<Map<String, String>>) metaData.getData().getOrDefault(name, new ArrayList<>());
+                entities.stream().filter(entry -> oldEntityId.equals(entry.get("name")))
+                        .findAny()
+                        .ifPresent(entry -> entry.put("name", newEntityId));
+            }));
+            metaDataRepository.updateWithRevisions(type, references, "System", revisionNote);
+        });
         return newMetaData;
     }
 
@@ -63,22 +62,19 @@ public class EntityIdReconcilerHook extends MetaDataHookAdapter {
     public MetaData preDelete(MetaData metaDataToBeDeleted) {
         String entityId = entityId(metaDataToBeDeleted);
         String metaDataType = metaDataToBeDeleted.getType();
-
-        asList("allowedEntities", "disableConsent").forEach(name -> {
-            List<String> types = metaDataTypesForeignKeyRelations(metaDataType);
-            types.forEach(type -> {
-                List<MetaData> references = metaDataRepository.findRaw(type,
-                        String.format("{\"data.%s.name\" : \"%s\"}", name, entityId));
-
-                String revisionNote = String.format("Updated after deletion of entityId %s", entityId);
-
-                references.forEach(metaData -> {
-                    List<Map<String, String>> entities = (List<Map<String, String>>) metaData.getData().getOrDefault(name, new ArrayList<>());
-                    entities = entities.stream().filter(entry -> !entityId.equals(entry.get("name"))).collect(toList());
-                    metaData.getData().put(name, entities);
-                    this.revision(metaData, revisionNote);
-                });
-            });
+        String revisionNote = String.format("Updated after deletion of entityId %s", entityId);
+
+        metaDataTypesForeignKeyRelations(metaDataType).forEach(type -> {
+            List<MetaData> references = metaDataRepository.findReferences(type, DELETE_RELATIONS, entityId);
+            references.forEach(metaData -> DELETE_RELATIONS.forEach(name -> {
+                if (metaData.getData().containsKey(name)) {
+                    List<Map<String, String>> entities = (List<Map<String, String>>) metaData.getData().get(name);
+                    metaData.getData().put(name, entities.stream()
+                            .filter(entry -> !entityId.equals(entry.get("name")))
+                            .collect(toList()));
+                }
+            }));
+            metaDataRepository.updateWithRevisions(type, references, "System", revisionNote);
         });
         return metaDataToBeDeleted;
     }
@@ -87,17 +83,6 @@ public class EntityIdReconcilerHook extends MetaDataHookAdapter {
         return (String) metaData.getData().get("entityid");
     }
 
-    private void revision(MetaData metaData, String revisionNote) {
-        String id = metaData.getId();
-        MetaData previous = metaDataRepository.findById(id, metaData.getType());
-        previous.revision(UUID.randomUUID().toString());
-        metaDataRepository.save(previous);
-
-        metaData.promoteToLatest("System", revisionNote);
-        metaDataRepository.update(metaData);
-
-    }
-
     public static List<String> metaDataTypesForeignKeyRelations(String type) {
         if (type.equals(SP.getType()) || type.equals(STT.getType())) {
             return singletonList(IDP.getType());
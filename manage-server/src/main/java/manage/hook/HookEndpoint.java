@@ -0,0 +1,26 @@
+package manage.hook;
+
+import manage.model.HookTiming;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+@Component
+@Endpoint(id = "hooks")
+public class HookEndpoint {
+
+    private final HookMetrics hookMetrics;
+
+    @Autowired
+    public HookEndpoint(HookMetrics hookMetrics) {
+        this.hookMetrics = hookMetrics;
+    }
+
+    @ReadOperation
+    public List<HookTiming> hooks() {
+        return hookMetrics.summary();
+    }
+}
@@ -0,0 +1,76 @@
+package manage.hook;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import manage.model.HookTiming;
+import manage.model.MetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Times every callback of every MetaDataHook, tagged by hook, callback and MetaData type. The application excludes
+ * the Micrometer auto-configuration, so the timers are kept in a registry of their own and exposed by the hooks
+ * actuator endpoint. Calls slower than hooks.slow_threshold_millis are logged.
+ */
+@Component
+public class HookMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HookMetrics.class);
+
+    static final String TIMER = "manage.hook";
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final long slowThresholdNanos;
+
+    @Autowired
+    public HookMetrics(@Value("${hooks.slow_threshold_millis}") long slowThresholdMillis) {
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+    }
+
+    public MetaData time(MetaDataHook hook, String callback, String type, Supplier<MetaData> supplier) {
+        long start = System.nanoTime();
+        try {
+            return supplier.get();
+        } finally {
+            long duration = System.nanoTime() - start;
+            String hookName = hook.getClass().getSimpleName();
+            Timer.builder(TIMER)
+                    .tag("hook", hookName)
+                    .tag("callback", callback)
+                    .tag("type", String.valueOf(type))
+                    .register(registry)
+                    .record(duration, TimeUnit.NANOSECONDS);
+            if (slowThresholdNanos > 0 && duration >= slowThresholdNanos) {
+                LOG.warn("Slow hook {}#{} for {} took {} ms", hookName, callback, type,
+                        TimeUnit.NANOSECONDS.toMillis(duration));
+            }
+        }
+    }
+
+    /**
+     * The timings of all hooks with the most total time first.
+     */
+    public List<HookTiming> summary() {
+        return registry.find(TIMER).timers().stream()
+                .map(timer -> new HookTiming(
+                        timer.getId().getTag("hook"),
+                        timer.getId().getTag("callback"),
+                        timer.getId().getTag("type"),
+                        timer.count(),
+                        timer.totalTime(TimeUnit.MILLISECONDS),
+                        timer.mean(TimeUnit.MILLISECONDS),
+                        timer.max(TimeUnit.MILLISECONDS)))
+                .sorted(Comparator.comparingDouble(HookTiming::getTotalMillis).reversed())
+                .collect(toList());
+    }
+}
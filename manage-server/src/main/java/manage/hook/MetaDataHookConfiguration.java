@@ -18,6 +18,7 @@ public class MetaDataHookConfiguration {
     CompositeMetaDataHook hooks(MetaDataRepository metaDataRepository,
                                 OpenIdConnect openIdConnect,
                                 MetaDataAutoConfiguration metaDataAutoConfiguration,
+                                HookMetrics hookMetrics,
                                 @Value("${oidc.acsLocation}") String acsLocation) {
 
         EntityIdReconcilerHook entityIdReconcilerHook = new EntityIdReconcilerHook(metaDataRepository);
@@ -34,7 +35,8 @@ public class MetaDataHookConfiguration {
                         entityIdConstraintsHook,
                         entityIdReconcilerHook,
                         openIdConnectHook,
-                        secretHook));
+                        secretHook),
+                hookMetrics);
     }
 
 
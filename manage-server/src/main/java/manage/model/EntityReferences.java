@@ -0,0 +1,46 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+
+/**
+ * The outgoing references - e.g. the allowedEntities - of one MetaData. The references are indexed on name, which
+ * is the referenced entityid or scope, so the MetaData referencing an entityid can be found without scanning the
+ * embedded lists of all MetaData. The sourceVersion is the version of the MetaData the references were read from.
+ */
+@Document(collection = "entity_references")
+@Getter
+@NoArgsConstructor
+@AllArgsConstructor
+public class EntityReferences {
+
+    @Id
+    private String id;
+
+    @Indexed
+    private String type;
+
+    private Long sourceVersion;
+
+    private String entityId;
+
+    private String name;
+
+    private List<Reference> references;
+
+    @Getter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Reference {
+
+        private String relation;
+
+        private String name;
+    }
+}
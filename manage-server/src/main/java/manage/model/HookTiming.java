@@ -0,0 +1,21 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The timing of one callback of a MetaDataHook for one MetaData type since the start of the application. The max is
+ * the longest call in the last few minutes.
+ */
+@Getter
+@AllArgsConstructor
+public class HookTiming {
+
+    private String hook;
+    private String callback;
+    private String type;
+    private long count;
+    private double totalMillis;
+    private double meanMillis;
+    private double maxMillis;
+}
@@ -0,0 +1,27 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * The usage of an index since the last restart of the database and the indexed paths that do not exist in any
+ * document of the collection.
+ */
+@Getter
+@AllArgsConstructor
+public class IndexReport {
+
+    private String collection;
+    private String name;
+    private List<String> fields;
+    private Long accesses;
+    private Instant accessesSince;
+    private List<String> missingFields;
+
+    public boolean isUnused() {
+        return accesses != null && accesses == 0L;
+    }
+}
@@ -0,0 +1,20 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of results ordered by _id. The continuationToken - absent on the last page - is used to request the next
+ * page and the total is only present when requested.
+ */
+@Getter
+@AllArgsConstructor
+public class KeysetPage<T> implements Serializable {
+
+    private final List<T> results;
+    private final String continuationToken;
+    private final Long total;
+}
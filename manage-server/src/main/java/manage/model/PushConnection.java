@@ -0,0 +1,37 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A connection in the EngineBlock push format. The sourceVersion is the version of the MetaData the connection was
+ * formatted from and the flags are the MetaData fields that decide if the connection is pushed.
+ */
+@Document(collection = "push_connections")
+@Getter
+@NoArgsConstructor
+@AllArgsConstructor
+public class PushConnection {
+
+    @Id
+    private String id;
+
+    @Indexed
+    private String type;
+
+    private Long sourceVersion;
+
+    private String json;
+
+    private String fingerprint;
+
+    private boolean excludeFromPush;
+
+    private boolean importedFromEdugain;
+
+    private boolean pushEnabled;
+}
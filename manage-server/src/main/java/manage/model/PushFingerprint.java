@@ -0,0 +1,25 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.io.Serializable;
+
+/**
+ * The fingerprint of the EngineBlock formatted connection as it was sent in the last successful push.
+ */
+@Getter
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "push_fingerprints")
+public class PushFingerprint implements Serializable {
+
+    @Id
+    private String id;
+
+    private String fingerprint;
+
+}
@@ -0,0 +1,29 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * The fields of a revision needed to draw the history of an entity. The full revision is fetched on demand.
+ */
+@Getter
+@AllArgsConstructor
+public class RevisionSummary implements Serializable {
+
+    private String id;
+    private int number;
+    private Instant created;
+    private String updatedBy;
+    private Instant terminated;
+    private String revisionnote;
+
+    public static RevisionSummary of(MetaData metaData) {
+        Revision revision = metaData.getRevision();
+        Object revisionnote = metaData.getData() != null ? metaData.getData().get("revisionnote") : null;
+        return new RevisionSummary(metaData.getId(), revision.getNumber(), revision.getCreated(),
+                revision.getUpdatedBy(), revision.getTerminated(), revisionnote != null ? revisionnote.toString() : null);
+    }
+}
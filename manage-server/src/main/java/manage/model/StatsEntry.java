@@ -7,4 +7,5 @@ public class StatsEntry {
 
     public String name;
     public Long count;
+    public Long storageSize;
 }
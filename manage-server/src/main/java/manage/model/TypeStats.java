@@ -0,0 +1,16 @@
+package manage.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+@Getter
+@AllArgsConstructor
+public class TypeStats {
+
+    private String type;
+    private long total;
+    private Map<String, Long> states;
+    private long importedFromEdugain;
+}
@@ -0,0 +1,26 @@
+package manage.mongo;
+
+import manage.model.IndexReport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+@Component
+@Endpoint(id = "indexes")
+public class IndexEndpoint {
+
+    private final IndexManager indexManager;
+
+    @Autowired
+    public IndexEndpoint(IndexManager indexManager) {
+        this.indexManager = indexManager;
+    }
+
+    @ReadOperation
+    public List<IndexReport> indexes() {
+        return indexManager.audit();
+    }
+}
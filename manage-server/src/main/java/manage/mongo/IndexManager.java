@@ -0,0 +1,132 @@
+package manage.mongo;
+
+import manage.conf.IndexConfiguration;
+import manage.conf.MetaDataAutoConfiguration;
+import manage.model.IndexReport;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static manage.mongo.MongoChangelog.REVISION_POSTFIX;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Ensures the indexes declared in the 'indexes' section of the schemas and audits all indexes of the MetaData
+ * collections. The audit reports how often an index was used and the indexed paths that do not occur in any
+ * document, which is a strong indication that the index was created with the wrong path.
+ */
+@Component
+public class IndexManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexManager.class);
+
+    private static final String DEFAULT_INDEX = "_id_";
+
+    private final MongoTemplate mongoTemplate;
+    private final MetaDataAutoConfiguration metaDataAutoConfiguration;
+
+    @Autowired
+    public IndexManager(MongoTemplate mongoTemplate, MetaDataAutoConfiguration metaDataAutoConfiguration) {
+        this.mongoTemplate = mongoTemplate;
+        this.metaDataAutoConfiguration = metaDataAutoConfiguration;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        metaDataAutoConfiguration.schemaNames().forEach(schema ->
+                metaDataAutoConfiguration.indexConfigurations(schema).forEach(indexConfiguration ->
+                        this.ensureIndex(schema, indexConfiguration)));
+        this.audit().stream()
+                .filter(report -> !report.getMissingFields().isEmpty())
+                .forEach(report -> LOG.warn("Index {} on {} contains paths not present in any document: {}",
+                        report.getName(), report.getCollection(), report.getMissingFields()));
+    }
+
+    public List<IndexReport> audit() {
+        List<IndexReport> reports = new ArrayList<>();
+        metaDataAutoConfiguration.schemaNames().stream()
+                .flatMap(schema -> Stream.of(schema, schema.concat(REVISION_POSTFIX)))
+                .filter(mongoTemplate::collectionExists)
+                .sorted()
+                .forEach(collection -> reports.addAll(this.audit(collection)));
+        return reports;
+    }
+
+    private List<IndexReport> audit(String collection) {
+        Map<String, Document> accesses = this.indexStats(collection);
+        boolean empty = mongoTemplate.getCollection(collection).estimatedDocumentCount() == 0L;
+        return mongoTemplate.indexOps(collection).getIndexInfo().stream()
+                .filter(indexInfo -> !DEFAULT_INDEX.equals(indexInfo.getName()))
+                .map(indexInfo -> {
+                    List<String> fields = indexInfo.getIndexFields().stream().map(IndexField::getKey).collect(toList());
+                    //Text indexes store their fields as weights, there is no path to verify
+                    List<String> missingFields = empty || fields.isEmpty() || this.isTextIndex(indexInfo) ? new ArrayList<>() :
+                            fields.stream()
+                                    .filter(field -> !mongoTemplate.exists(new Query(where(field).exists(true)), collection))
+                                    .collect(toList());
+                    Document access = accesses.get(indexInfo.getName());
+                    Long ops = access != null ? ((Number) access.get("ops")).longValue() : null;
+                    Date since = access != null ? access.getDate("since") : null;
+                    return new IndexReport(collection, indexInfo.getName(), fields, ops,
+                            since != null ? since.toInstant() : null, missingFields);
+                })
+                .collect(toList());
+    }
+
+    private boolean isTextIndex(IndexInfo indexInfo) {
+        return indexInfo.getIndexFields().stream().anyMatch(IndexField::isText);
+    }
+
+    private Map<String, Document> indexStats(String collection) {
+        Map<String, Document> accesses = new HashMap<>();
+        try {
+            mongoTemplate.getCollection(collection)
+                    .aggregate(singletonList(new Document("$indexStats", new Document())))
+                    .forEach(stats -> accesses.put(stats.getString("name"), stats.get("accesses", Document.class)));
+        } catch (RuntimeException e) {
+            //Not every deployment allows the indexStats action for the application user
+            LOG.warn("Unable to retrieve the index statistics of {}: {}", collection, e.getMessage());
+        }
+        return accesses;
+    }
+
+    private void ensureIndex(String collection, IndexConfiguration indexConfiguration) {
+        if (!"field".equals(indexConfiguration.getType())) {
+            LOG.warn("Ignoring index {} on {} with unsupported type {}",
+                    indexConfiguration.getName(), collection, indexConfiguration.getType());
+            return;
+        }
+        Index index = new Index().named(indexConfiguration.getName());
+        indexConfiguration.getFields().forEach(field ->
+                index.on(field.startsWith("data.") ? field : "data.".concat(field), Sort.Direction.ASC));
+        if (indexConfiguration.isUnique()) {
+            index.unique();
+        }
+        try {
+            mongoTemplate.indexOps(collection).ensureIndex(index);
+        } catch (DataAccessException e) {
+            //An existing index with the same keys but different options or name is left untouched
+            LOG.warn("Unable to ensure index {} on {}: {}", indexConfiguration.getName(), collection, e.getMessage());
+        }
+    }
+}
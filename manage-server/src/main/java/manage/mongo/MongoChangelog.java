@@ -4,6 +4,7 @@ import com.github.cloudyrock.mongock.ChangeLog;
 import com.github.cloudyrock.mongock.ChangeSet;
 import com.github.cloudyrock.mongock.driver.mongodb.springdata.v3.decorator.impl.MongockTemplate;
 import com.mongodb.client.DistinctIterable;
+import manage.model.EntityReferences;
 import manage.model.EntityType;
 import manage.model.Scope;
 import org.slf4j.Logger;
@@ -15,6 +16,7 @@ import org.springframework.data.mongodb.core.index.TextIndexDefinition;
 import org.springframework.data.mongodb.core.query.Query;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -73,6 +75,36 @@ public class MongoChangelog {
         mongoTemplate.remove(new Query(), "sessions");
     }
 
+    @ChangeSet(order = "005", id = "fixInstitutionIdIndex", author = "okke.harsta@surf.nl")
+    public void fixInstitutionIdIndex(MongockTemplate mongoTemplate) {
+        Stream.of(EntityType.IDP, EntityType.SP, EntityType.RP).map(EntityType::getType).forEach(collection -> {
+            IndexOperations indexOps = mongoTemplate.indexOps(collection);
+            //The index was created without the 'data.' prefix and never used
+            indexOps.getIndexInfo().stream()
+                    .filter(indexInfo -> indexInfo.isIndexForFields(Collections.singletonList("metaDataFields.coin:institution_id")))
+                    .forEach(indexInfo -> indexOps.dropIndex(indexInfo.getName()));
+            indexOps.ensureIndex(new Index("data.metaDataFields.coin:institution_id", Sort.Direction.ASC));
+            indexOps.ensureIndex(new Index("data.metaDataFields.coin:imported_from_edugain", Sort.Direction.ASC));
+        });
+    }
+
+    @ChangeSet(order = "006", id = "addRevisionNumberIndex", author = "okke.harsta@surf.nl")
+    public void addRevisionNumberIndex(MongockTemplate mongoTemplate) {
+        Stream.of(EntityType.values()).map(entityType -> entityType.getType().concat(REVISION_POSTFIX))
+                .filter(mongoTemplate::collectionExists)
+                .forEach(collection -> mongoTemplate.indexOps(collection).ensureIndex(new Index()
+                        .on("revision.parentId", Sort.Direction.ASC)
+                        .on("revision.number", Sort.Direction.DESC)));
+    }
+
+    @ChangeSet(order = "007", id = "addEntityReferencesIndexes", author = "okke.harsta@surf.nl")
+    public void addEntityReferencesIndexes(MongockTemplate mongoTemplate) {
+        //The entity_references collection itself is filled by the ReferenceIndex at startup
+        IndexOperations indexOps = mongoTemplate.indexOps(EntityReferences.class);
+        indexOps.ensureIndex(new Index("type", Sort.Direction.ASC));
+        indexOps.ensureIndex(new Index().on("references.name", Sort.Direction.ASC).on("type", Sort.Direction.ASC));
+    }
+
     private void doCreateSchemas(MongockTemplate mongoTemplate, List<String> connectionTypes) {
         connectionTypes.forEach(schema -> {
             if (!mongoTemplate.collectionExists(schema)) {
@@ -95,7 +127,7 @@ public class MongoChangelog {
             indexOps.ensureIndex(new Index("data.state", Sort.Direction.ASC));
             indexOps.ensureIndex(new Index("data.allowedall", Sort.Direction.ASC));
             indexOps.ensureIndex(new Index("data.allowedEntities.name", Sort.Direction.ASC));
-            indexOps.ensureIndex(new Index("metaDataFields.coin:institution_id", Sort.Direction.ASC));
+            indexOps.ensureIndex(new Index("data.metaDataFields.coin:institution_id", Sort.Direction.ASC));
         });
         connectionTypes.stream().map(s -> s + "_revision").forEach(collection -> {
             IndexOperations indexOps = mongoTemplate.indexOps(collection);
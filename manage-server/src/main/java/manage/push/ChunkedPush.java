@@ -0,0 +1,135 @@
+package manage.push;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import static manage.push.PushTimings.Stage.SERIALIZE;
+import static manage.push.PushTimings.Stage.TRANSMIT;
+
+/**
+ * Splits the connections of a push in chunks of at most chunkSize connections. A completed chunk is sent on the
+ * executor while the next chunk is being written, but never more than one chunk is sent at the same time. This
+ * bounds the memory to two chunks and keeps the order in which EngineBlock receives the chunks.
+ * <p>
+ * A chunk has the format {"pushId": "...", "chunk": 0, "connections": {...}}.
+ */
+public class ChunkedPush {
+
+    private final String pushId = UUID.randomUUID().toString();
+    private final JsonFactory jsonFactory;
+    private final int chunkSize;
+    private final Executor executor;
+    private final Consumer<byte[]> sender;
+    private final PushTimings timings;
+
+    private ByteArrayOutputStream buffer;
+    private JsonGenerator generator;
+    private int connectionsInChunk;
+    private int chunks;
+    private CompletableFuture<Void> sending = CompletableFuture.completedFuture(null);
+
+    public ChunkedPush(JsonFactory jsonFactory, int chunkSize, Executor executor, Consumer<byte[]> sender,
+                       PushTimings timings) {
+        this.jsonFactory = jsonFactory;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+        this.sender = sender;
+        this.timings = timings;
+    }
+
+    public String getPushId() {
+        return pushId;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Adds an already serialized connection to the current chunk and sends the chunk when it is full.
+     */
+    public void add(String id, String json) {
+        long start = System.nanoTime();
+        try {
+            if (generator == null) {
+                this.startChunk();
+            }
+            generator.writeFieldName(id);
+            generator.writeRawValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            timings.add(SERIALIZE, System.nanoTime() - start);
+        }
+        if (++connectionsInChunk == chunkSize) {
+            this.send();
+        }
+    }
+
+    /**
+     * Sends the last chunk and waits until all chunks are sent.
+     */
+    public void finish() {
+        if (generator != null) {
+            this.send();
+        }
+        this.await();
+    }
+
+    private void startChunk() throws IOException {
+        buffer = new ByteArrayOutputStream();
+        generator = jsonFactory.createGenerator(buffer);
+        generator.writeStartObject();
+        generator.writeStringField("pushId", pushId);
+        generator.writeNumberField("chunk", chunks);
+        generator.writeObjectFieldStart("connections");
+        connectionsInChunk = 0;
+    }
+
+    private void send() {
+        byte[] chunk;
+        long start = System.nanoTime();
+        try {
+            generator.writeEndObject();
+            generator.writeEndObject();
+            generator.close();
+            chunk = buffer.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            timings.add(SERIALIZE, System.nanoTime() - start);
+        }
+        generator = null;
+        buffer = null;
+        chunks++;
+
+        //Wait for the previous chunk, so chunks are sent one at a time and in order
+        this.await();
+        sending = CompletableFuture.runAsync(() -> {
+            long sendStart = System.nanoTime();
+            try {
+                sender.accept(chunk);
+            } finally {
+                timings.add(TRANSMIT, System.nanoTime() - sendStart);
+            }
+        }, executor);
+    }
+
+    private void await() {
+        try {
+            sending.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package manage.push;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The number of bytes of the request bodies of a push, before and after compression.
+ */
+public class PushBytes {
+
+    private final AtomicLong uncompressed = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+
+    public void add(long uncompressedBytes, long compressedBytes) {
+        uncompressed.addAndGet(uncompressedBytes);
+        compressed.addAndGet(compressedBytes);
+    }
+
+    public Map<String, Long> toMap() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("uncompressed", uncompressed.get());
+        result.put("compressed", compressed.get());
+        return result;
+    }
+}
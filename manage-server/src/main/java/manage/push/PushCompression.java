@@ -0,0 +1,42 @@
+package manage.push;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression of a push request body, configured per push target.
+ */
+public enum PushCompression {
+
+    NONE(null), GZIP("gzip"), DEFLATE("deflate");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String contentEncoding;
+
+    PushCompression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    public Optional<String> contentEncoding() {
+        return Optional.ofNullable(contentEncoding);
+    }
+
+    public OutputStream compress(OutputStream outputStream) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(outputStream, BUFFER_SIZE);
+            case DEFLATE:
+                return new DeflaterOutputStream(outputStream);
+            default:
+                return outputStream;
+        }
+    }
+
+    public static PushCompression fromConfiguration(String compression) {
+        return PushCompression.valueOf(compression.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,100 @@
+package manage.push;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import manage.model.PushFingerprint;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * The difference between the connections of the last successful push - represented by their fingerprints - and the
+ * connections that are about to be pushed. Connections are compared by the fingerprint of their EngineBlock format,
+ * so only changes that EngineBlock actually receives are considered a change.
+ * <p>
+ * Connections are registered one at a time and are not retained, which allows the delta to be computed while the
+ * connections are streamed to EngineBlock.
+ */
+public class PushDelta {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private final Map<String, String> previousFingerprints;
+    private final Map<String, String> changedFingerprints = new HashMap<>();
+    private final Set<String> registered = new HashSet<>();
+
+    public PushDelta(Map<String, String> previousFingerprints) {
+        this.previousFingerprints = previousFingerprints;
+    }
+
+    public static String fingerprint(Map<String, Object> connection) {
+        return fingerprint(toJson(connection));
+    }
+
+    public static String fingerprint(String json) {
+        return DigestUtils.md5DigestAsHex(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The JSON of the connection with all map entries ordered by key, which is the input for the fingerprint
+     */
+    public static String toJson(Map<String, Object> connection) {
+        try {
+            return objectMapper.writeValueAsString(connection);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns true if the connection was added or changed since the last successful push
+     */
+    public boolean register(String id, Map<String, Object> connection) {
+        return register(id, fingerprint(connection));
+    }
+
+    /**
+     * Returns true if the connection with this fingerprint was added or changed since the last successful push
+     */
+    public boolean register(String id, String fingerprint) {
+        registered.add(id);
+        if (fingerprint.equals(previousFingerprints.get(id))) {
+            return false;
+        }
+        changedFingerprints.put(id, fingerprint);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return changedFingerprints.isEmpty() && getRemoved().isEmpty();
+    }
+
+    public List<String> getRemoved() {
+        return previousFingerprints.keySet().stream()
+                .filter(id -> !registered.contains(id))
+                .collect(toList());
+    }
+
+    public List<PushFingerprint> changedFingerprints() {
+        List<PushFingerprint> result = new ArrayList<>();
+        changedFingerprints.forEach((id, fingerprint) -> result.add(new PushFingerprint(id, fingerprint)));
+        return result;
+    }
+
+    public Map<String, Integer> summary() {
+        Map<String, Integer> summary = new HashMap<>();
+        summary.put("changed", changedFingerprints.size());
+        summary.put("removed", getRemoved().size());
+        return summary;
+    }
+}
@@ -0,0 +1,58 @@
+package manage.push;
+
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@Getter
+public class PushJob implements Serializable {
+
+    public enum Status {
+        PENDING, RUNNING, DONE, FAILED
+    }
+
+    private final String id;
+    private final Instant created = Instant.now();
+    private final List<String> requestedBy = new CopyOnWriteArrayList<>();
+
+    private volatile Status status = Status.PENDING;
+    private volatile Instant started;
+    private volatile Instant finished;
+    private volatile Map result;
+    private volatile String error;
+
+    public PushJob(String id, String requestedBy) {
+        this.id = id;
+        this.requestedBy.add(requestedBy);
+    }
+
+    void coalesce(String requestedBy) {
+        this.requestedBy.add(requestedBy);
+    }
+
+    void start() {
+        this.started = Instant.now();
+        this.status = Status.RUNNING;
+    }
+
+    void done(Map result) {
+        this.result = result;
+        this.finished = Instant.now();
+        this.status = Status.DONE;
+    }
+
+    void failed(Exception e) {
+        failed(null, String.format("%s: %s", e.getClass().getName(), e.getMessage()));
+    }
+
+    void failed(Map result, String error) {
+        this.result = result;
+        this.error = error;
+        this.finished = Instant.now();
+        this.status = Status.FAILED;
+    }
+}
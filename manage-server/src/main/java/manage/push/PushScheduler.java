@@ -0,0 +1,106 @@
+package manage.push;
+
+import manage.control.DatabaseController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs pushes in the background. All push requests that arrive within the coalesce window of the first request are
+ * collapsed into one push. Pushes never overlap: a request that arrives while a push is running is scheduled after
+ * the running push, and DatabaseController#doPush serializes these pushes with the synchronous pushes.
+ * <p>
+ * The jobs are kept in memory on the node that scheduled them. The status of a job can only be read from that node
+ * and is lost on a restart. Pushes of different nodes are neither coalesced nor serialized.
+ */
+@Component
+public class PushScheduler {
+
+    public static final String PUSH_JOB_ID_HEADER = "X-Push-Job-Id";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PushScheduler.class);
+
+    private static final int MAX_JOBS = 100;
+
+    private final DatabaseController databaseController;
+    private final long coalesceWindowMillis;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "push-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, PushJob> jobs = new LinkedHashMap<String, PushJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PushJob> eldest) {
+            return size() > MAX_JOBS;
+        }
+    };
+
+    private PushJob pendingJob;
+
+    @Autowired
+    public PushScheduler(DatabaseController databaseController,
+                         @Value("${push.coalesce_window_millis}") long coalesceWindowMillis) {
+        this.databaseController = databaseController;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    public synchronized PushJob schedule(String requestedBy) {
+        if (pendingJob != null) {
+            LOG.debug("Push requested by {} coalesced into push job {}", requestedBy, pendingJob.getId());
+            pendingJob.coalesce(requestedBy);
+            return pendingJob;
+        }
+        PushJob pushJob = new PushJob(UUID.randomUUID().toString(), requestedBy);
+        jobs.put(pushJob.getId(), pushJob);
+        pendingJob = pushJob;
+        executor.schedule(() -> this.run(pushJob), coalesceWindowMillis, TimeUnit.MILLISECONDS);
+        return pushJob;
+    }
+
+    public synchronized Optional<PushJob> job(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(PushJob pushJob) {
+        synchronized (this) {
+            if (pendingJob == pushJob) {
+                pendingJob = null;
+            }
+        }
+        LOG.info("Starting push job {} requested by {}", pushJob.getId(), pushJob.getRequestedBy());
+        pushJob.start();
+        try {
+            ResponseEntity<Map> response = databaseController.doPush();
+            if (response.getStatusCode().is2xxSuccessful()) {
+                pushJob.done(response.getBody());
+                LOG.info("Finished push job {}", pushJob.getId());
+            } else {
+                //One of the push targets failed or timed out, the result contains the details per target
+                pushJob.failed(response.getBody(), String.format("Push failed with status %s", response.getStatusCode()));
+                LOG.error("Push job {} failed with status {}", pushJob.getId(), response.getStatusCode());
+            }
+        } catch (RuntimeException e) {
+            LOG.error(String.format("Push job %s failed", pushJob.getId()), e);
+            pushJob.failed(e);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package manage.push;
+
+import lombok.Getter;
+import org.springframework.util.DigestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The serialized connections in the EngineBlock push format at the moment the change counter had the given value.
+ * The ETag is derived from the content, so a rebuild without changes results in the same ETag.
+ */
+@Getter
+public class PushSnapshot {
+
+    private final long changeCounter;
+    private final Instant created = Instant.now();
+    private final byte[] json;
+    private final String eTag;
+
+    public PushSnapshot(long changeCounter, byte[] json) {
+        this.changeCounter = changeCounter;
+        this.json = json;
+        this.eTag = "\"" + DigestUtils.md5DigestAsHex(json) + "\"";
+    }
+
+    /**
+     * The maximum age limits how long changes that are made outside of the application - and therefore not counted
+     * - remain unnoticed.
+     */
+    public boolean isCurrent(long changeCounter, Duration maxAge) {
+        return this.changeCounter == changeCounter && created.plus(maxAge).isAfter(Instant.now());
+    }
+}
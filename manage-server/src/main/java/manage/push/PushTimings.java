@@ -0,0 +1,51 @@
+package manage.push;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Accumulates the time a push spends in each stage. The stages interleave because the connections are streamed, so
+ * the time of a stage is the sum of all the moments the push was busy with that stage.
+ */
+public class PushTimings {
+
+    public enum Stage {
+        LOAD, FORMAT, SERIALIZE, TRANSMIT
+    }
+
+    private final Map<Stage, AtomicLong> nanos = new EnumMap<>(Stage.class);
+
+    public PushTimings() {
+        for (Stage stage : Stage.values()) {
+            nanos.put(stage, new AtomicLong());
+        }
+    }
+
+    public <T> T time(Stage stage, Supplier<T> supplier) {
+        long start = System.nanoTime();
+        try {
+            return supplier.get();
+        } finally {
+            add(stage, System.nanoTime() - start);
+        }
+    }
+
+    public void add(Stage stage, long elapsedNanos) {
+        nanos.get(stage).addAndGet(elapsedNanos);
+    }
+
+    public long totalNanos() {
+        return nanos.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    public Map<String, Long> toMillis() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        nanos.forEach((stage, elapsed) ->
+                result.put(stage.name().toLowerCase(), TimeUnit.NANOSECONDS.toMillis(elapsed.get())));
+        return result;
+    }
+}
@@ -0,0 +1,323 @@
+package manage.push;
+
+import manage.format.EngineBlockFormatter;
+import manage.model.EntityType;
+import manage.model.MetaData;
+import manage.model.PushConnection;
+import manage.mongo.Sequence;
+import manage.repository.MetaDataChangedEvent;
+import manage.repository.MetaDataRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static manage.push.PushTimings.Stage.LOAD;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Materialized view of all connections in the EngineBlock push format. The view is updated after every change made
+ * through the MetaDataRepository, so a push only has to stream the already formatted connections.
+ * <p>
+ * Before a push the versions in the view are compared with the versions of the MetaData. Connections that are
+ * missing or outdated - e.g. because MetaData was changed by a script - are formatted again.
+ * <p>
+ * Like the ReferenceIndex, the connections of changed MetaData are formatted on the thread that changed them, and a
+ * change of an unknown number of MetaData is synchronized in the background and otherwise by the next push. The view
+ * only accepts connections of a newer version of the MetaData than it already has, so an outdated read can not
+ * overwrite a newer one.
+ */
+@Component
+public class PushView {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PushView.class);
+
+    public static final List<String> PUSH_TYPES = Arrays.asList(
+            EntityType.SP.getType(), EntityType.RP.getType(), EntityType.IDP.getType());
+
+    private static final int REFRESH_BATCH_SIZE = 500;
+
+    private static final String CHANGE_COUNTER = "federation_changes";
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+    private final EngineBlockFormatter formatter = new EngineBlockFormatter();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "push-view");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Formats the batches of the view and of the pushes without the view in parallel, null when single-threaded
+    private final ForkJoinPool formatPool;
+
+    @Autowired
+    public PushView(MetaDataRepository metaDataRepository,
+                    @Value("${push.view.enabled}") boolean enabled,
+                    @Value("${push.format.parallelism}") int formatParallelism) {
+        this.mongoTemplate = metaDataRepository.getMongoTemplate();
+        this.enabled = enabled;
+        int parallelism = formatParallelism > 0 ? formatParallelism : Runtime.getRuntime().availableProcessors();
+        this.formatPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        if (formatPool != null) {
+            formatPool.shutdownNow();
+        }
+    }
+
+    @EventListener
+    public void onMetaDataChanged(MetaDataChangedEvent event) {
+        String type = event.getType();
+        if (!PUSH_TYPES.contains(type)) {
+            return;
+        }
+        if (enabled && event.isBulk() && event.getIds() == null) {
+            executor.execute(() -> {
+                try {
+                    this.synchronize(type);
+                    //A snapshot cached while the view was synchronized is outdated
+                    this.incrementChangeCounter();
+                } catch (RuntimeException e) {
+                    //The next push synchronizes the view again
+                    LOG.error("Error synchronizing the push view for " + type, e);
+                }
+            });
+        } else if (enabled) {
+            try {
+                if (event.isDeleted()) {
+                    this.remove(singletonList(event.getId()));
+                } else if (event.isBulk()) {
+                    this.refreshInBatches(type, new ArrayList<>(event.getIds()));
+                } else {
+                    this.refresh(type, singletonList(event.getId()));
+                }
+            } catch (RuntimeException e) {
+                //The change is already persisted and the view will be repaired before the next push
+                LOG.error(String.format("Error updating the push view for %s %s", type, event.getId()), e);
+            }
+        }
+        //Only after the view is updated, otherwise a snapshot of the old view could be cached as the latest
+        this.incrementChangeCounter();
+    }
+
+    /**
+     * The number of changes to the pushed MetaData. The counter is stored in the database so it is shared by all
+     * instances and survives restarts.
+     */
+    public long changeCounter() {
+        Sequence sequence = mongoTemplate.findById(CHANGE_COUNTER, Sequence.class);
+        return sequence == null ? 0L : sequence.getValue();
+    }
+
+    private void incrementChangeCounter() {
+        mongoTemplate.upsert(new Query(where("_id").is(CHANGE_COUNTER)), new Update().inc("value", 1L), Sequence.class);
+    }
+
+    /**
+     * Formats all MetaData of the type that is not in the view or has a different version than the view.
+     */
+    public void synchronize(String type) {
+        Map<String, Long> sourceVersions = new HashMap<>();
+        Query sourceQuery = new Query();
+        sourceQuery.fields().include("version");
+        try (CloseableIterator<MetaData> iterator = mongoTemplate.stream(sourceQuery, MetaData.class, type)) {
+            iterator.forEachRemaining(metaData -> sourceVersions.put(metaData.getId(), metaData.getVersion()));
+        }
+
+        Map<String, Long> viewVersions = new HashMap<>();
+        Query viewQuery = new Query(where("type").is(type));
+        viewQuery.fields().include("sourceVersion");
+        try (CloseableIterator<PushConnection> iterator = mongoTemplate.stream(viewQuery, PushConnection.class)) {
+            iterator.forEachRemaining(connection -> viewVersions.put(connection.getId(), connection.getSourceVersion()));
+        }
+
+        List<String> removed = viewVersions.keySet().stream()
+                .filter(id -> !sourceVersions.containsKey(id))
+                .collect(toList());
+        List<String> outdated = sourceVersions.entrySet().stream()
+                .filter(entry -> !viewVersions.containsKey(entry.getKey()) ||
+                        !Objects.equals(viewVersions.get(entry.getKey()), entry.getValue()))
+                .map(Map.Entry::getKey)
+                .collect(toList());
+        if (!removed.isEmpty() || !outdated.isEmpty()) {
+            LOG.info("Synchronizing push view of {}: {} outdated and {} removed connections",
+                    type, outdated.size(), removed.size());
+        }
+        this.remove(removed);
+        this.refreshInBatches(type, outdated);
+    }
+
+    private void refreshInBatches(String type, List<String> ids) {
+        for (int i = 0; i < ids.size(); i += REFRESH_BATCH_SIZE) {
+            this.refresh(type, ids.subList(i, Math.min(ids.size(), i + REFRESH_BATCH_SIZE)));
+        }
+    }
+
+    public void forEach(String type, PushTimings timings, Consumer<PushConnection> consumer) {
+        try (CloseableIterator<PushConnection> iterator = timings.time(LOAD, () ->
+                mongoTemplate.stream(new Query(where("type").is(type)), PushConnection.class))) {
+            while (true) {
+                PushConnection connection = timings.time(LOAD, () -> iterator.hasNext() ? iterator.next() : null);
+                if (connection == null) {
+                    break;
+                }
+                consumer.accept(connection);
+            }
+        }
+    }
+
+    /**
+     * Formats the MetaData - read with the pushQuery - to a connection in the EngineBlock push format.
+     */
+    @SuppressWarnings("unchecked")
+    public PushConnection connection(String type, MetaData metaData) {
+        //The projection omits metaDataFields when none of the projected fields are present
+        Map<String, Object> metaDataFields = (Map<String, Object>) metaData.getData()
+                .computeIfAbsent("metaDataFields", key -> new HashMap<>());
+        boolean excludeFromPush = excludeFromPush(metaDataFields);
+        boolean importedFromEdugain = Boolean.TRUE.equals(metaDataFields.get("coin:imported_from_edugain"));
+        boolean pushEnabled = Boolean.TRUE.equals(metaDataFields.get("coin:push_enabled"));
+
+        String json = PushDelta.toJson(this.format(type, metaData));
+        return new PushConnection(metaData.getId(), type, metaData.getVersion(), json, PushDelta.fingerprint(json),
+                excludeFromPush, importedFromEdugain, pushEnabled);
+    }
+
+    /**
+     * Formats the batch in parallel - if configured - and returns the connections in the order of the batch.
+     */
+    public List<PushConnection> connections(String type, List<MetaData> batch) {
+        Function<MetaData, PushConnection> format = metaData -> this.connection(type, metaData);
+        if (formatPool == null || batch.size() < 2) {
+            return batch.stream().map(format).collect(toList());
+        }
+        return formatPool.submit(() -> batch.parallelStream().map(format).collect(toList())).join();
+    }
+
+    /**
+     * Only the fields used by the EngineBlockFormatter and the push filters are read from the database.
+     */
+    public static Query pushQuery() {
+        Query query = new Query();
+        query.fields().include("version");
+        EngineBlockFormatter.projectedFields().forEach(field -> query.fields().include(field));
+        Stream.of("coin:exclude_from_push", "coin:imported_from_edugain", "coin:push_enabled")
+                .forEach(key -> query.fields().include("data.metaDataFields." + key));
+        return query;
+    }
+
+    private Map<String, Object> format(String type, MetaData metaData) {
+        switch (EntityType.fromType(type)) {
+            case SP:
+                return formatter.parseServiceProvider(metaData);
+            case RP:
+                return formatter.parseOidcClient(metaData);
+            case IDP:
+                //Explicit only filter out 'null' objects in the disableConsent as generically filtering out 'nulls' can break things
+                filterOutNullDisableConsentExplanations(metaData);
+                return formatter.parseIdentityProvider(metaData);
+            default:
+                throw new IllegalArgumentException("Not a push type: " + type);
+        }
+    }
+
+    private void refresh(String type, List<String> ids) {
+        Query query = pushQuery().addCriteria(where("_id").in(ids));
+        List<MetaData> batch = new ArrayList<>(ids.size());
+        try (CloseableIterator<MetaData> iterator = mongoTemplate.stream(query, MetaData.class, type)) {
+            iterator.forEachRemaining(batch::add);
+        }
+        Set<String> found = new HashSet<>();
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PushConnection.class);
+        this.connections(type, batch).forEach(connection -> {
+            Criteria olderVersion = where("_id").is(connection.getId());
+            if (connection.getSourceVersion() != null) {
+                olderVersion.and("sourceVersion").not().gte(connection.getSourceVersion());
+            }
+            bulkOperations.replaceOne(new Query(olderVersion), connection, FindAndReplaceOptions.options().upsert());
+            found.add(connection.getId());
+        });
+        if (!found.isEmpty()) {
+            try {
+                bulkOperations.execute();
+            } catch (BulkOperationException e) {
+                //The upsert of connections that are already formatted for a newer version fails on the unique _id
+                boolean onlyNewerVersions = e.getErrors().stream().allMatch(error -> error.getCode() == DUPLICATE_KEY);
+                if (!onlyNewerVersions) {
+                    throw e;
+                }
+            }
+        }
+        List<String> missing = new ArrayList<>(ids);
+        missing.removeAll(found);
+        this.remove(missing);
+    }
+
+    private void remove(Collection<String> ids) {
+        if (!ids.isEmpty()) {
+            mongoTemplate.remove(new Query(where("_id").in(ids)), PushConnection.class);
+        }
+    }
+
+    private static boolean excludeFromPush(Map metaDataFields) {
+        Object excludeFromPush = metaDataFields.getOrDefault("coin:exclude_from_push", false);
+        if (excludeFromPush instanceof String) {
+            return "1".equals(excludeFromPush);
+        }
+        return (boolean) excludeFromPush;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void filterOutNullDisableConsentExplanations(MetaData idp) {
+        Object disableConsentData = idp.getData().get("disableConsent");
+        if (disableConsentData instanceof List) {
+            List disableConsent = (List) disableConsentData;
+            disableConsent.forEach(disableConsentEntry -> {
+                if (disableConsentEntry instanceof Map) {
+                    Map<String, Object> disableConsentMap = (Map) disableConsentEntry;
+                    disableConsentMap.entrySet().removeIf(entry -> entry.getValue() == null);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package manage.repository;
+
+import manage.conf.MetaDataAutoConfiguration;
+import manage.mongo.Sequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * In-memory trigram index over the entityid, names and keywords of all entities, used by the autocomplete. The
+ * semantics are the same as the regular expressions it replaces: every part of the search must be a case-insensitive
+ * substring of one of the indexed fields.
+ * <p>
+ * The index is built at startup, updated after every change made through the MetaDataRepository and rebuilt
+ * periodically to pick up changes made outside of the application. Every instance has its own index, so the changes
+ * are also counted in the database. The index is rebuilt when the shared counter shows changes made through another
+ * instance.
+ */
+@Component
+public class AutoCompleteIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AutoCompleteIndex.class);
+
+    private static final int NGRAM = 3;
+
+    static final String CHANGE_COUNTER = "autocomplete_changes";
+
+    private final MongoTemplate mongoTemplate;
+    private final MetaDataAutoConfiguration metaDataAutoConfiguration;
+    private final List<String> fields;
+    private final long refreshMinutes;
+    private final long pollSeconds;
+
+    private final Map<String, TypeIndex> indexes = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> changedDuringRebuild = new ConcurrentHashMap<>();
+
+    //The changes counted by this instance since the last poll and the value of the shared counter at the last poll
+    private final AtomicLong ownChanges = new AtomicLong();
+    private long polledChanges = -1L;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "autocomplete-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public AutoCompleteIndex(MongoTemplate mongoTemplate,
+                             MetaDataAutoConfiguration metaDataAutoConfiguration,
+                             @Value("${product.supported_languages}") String supportedLanguages,
+                             @Value("${autocomplete.refresh_minutes}") long refreshMinutes,
+                             @Value("${autocomplete.poll_seconds}") long pollSeconds) {
+        this.mongoTemplate = mongoTemplate;
+        this.metaDataAutoConfiguration = metaDataAutoConfiguration;
+        this.refreshMinutes = refreshMinutes;
+        this.pollSeconds = pollSeconds;
+        this.fields = new ArrayList<>();
+        this.fields.add("data.entityid");
+        Stream.of(supportedLanguages.split(",")).map(String::trim).forEach(lang -> {
+            fields.add("data.metaDataFields.name:" + lang);
+            fields.add("data.metaDataFields.keywords:" + lang);
+        });
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        executor.execute(this::rebuild);
+        if (refreshMinutes > 0) {
+            executor.scheduleWithFixedDelay(this::rebuild, refreshMinutes, refreshMinutes, TimeUnit.MINUTES);
+        }
+        if (pollSeconds > 0) {
+            executor.scheduleWithFixedDelay(this::pollChanges, 0L, pollSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @EventListener
+    public void onMetaDataChanged(MetaDataChangedEvent event) {
+        String type = event.getType();
+        if (!metaDataAutoConfiguration.schemaNames().contains(type)) {
+            return;
+        }
+        if (event.isBulk()) {
+            executor.execute(() -> this.rebuild(type));
+        } else {
+            Set<String> changed = changedDuringRebuild.get(type);
+            if (changed != null) {
+                changed.add(event.getId());
+            }
+            TypeIndex typeIndex = indexes.get(type);
+            if (typeIndex != null) {
+                this.reindex(type, typeIndex, event.getId());
+            }
+        }
+        if (pollSeconds > 0) {
+            mongoTemplate.upsert(new Query(where("_id").is(CHANGE_COUNTER)), new Update().inc("value", 1L),
+                    Sequence.class);
+            //Only after the shared counter is incremented, otherwise a poll in between could miss another change
+            ownChanges.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the ids of all entities of the type that match the search in a stable order, or empty if the type is
+     * not - or not yet - indexed.
+     */
+    public Optional<List<String>> search(String type, String search) {
+        TypeIndex typeIndex = indexes.get(type);
+        if (typeIndex == null) {
+            return Optional.empty();
+        }
+        List<String> parts = Stream.of(search.toLowerCase(Locale.ROOT).split(" ")).collect(toList());
+        return Optional.of(typeIndex.search(parts));
+    }
+
+    /**
+     * Removes entities that no longer exist in the database.
+     */
+    public void evict(String type, Collection<String> ids) {
+        TypeIndex typeIndex = indexes.get(type);
+        if (typeIndex != null) {
+            ids.forEach(typeIndex::remove);
+        }
+    }
+
+    void rebuild() {
+        metaDataAutoConfiguration.schemaNames().forEach(this::rebuild);
+    }
+
+    /**
+     * Rebuilds the index if the shared counter has changed more than the changes made through this instance.
+     */
+    void pollChanges() {
+        try {
+            Sequence sequence = mongoTemplate.findById(CHANGE_COUNTER, Sequence.class);
+            long changes = sequence == null ? 0L : sequence.getValue();
+            long own = ownChanges.getAndSet(0L);
+            if (polledChanges >= 0 && changes - polledChanges > own) {
+                LOG.debug("Rebuilding the autocomplete index after {} changes of other instances",
+                        changes - polledChanges - own);
+                this.rebuild();
+            }
+            polledChanges = changes;
+        } catch (RuntimeException e) {
+            LOG.error("Error polling the changes for the autocomplete index", e);
+        }
+    }
+
+    private void rebuild(String type) {
+        try {
+            long start = System.currentTimeMillis();
+            changedDuringRebuild.put(type, ConcurrentHashMap.newKeySet());
+            TypeIndex typeIndex = new TypeIndex();
+            Query query = this.query();
+            try (CloseableIterator<Map> iterator = mongoTemplate.stream(query, Map.class, type)) {
+                iterator.forEachRemaining(document -> typeIndex.put(String.valueOf(document.get("_id")), texts(document)));
+            }
+            indexes.put(type, typeIndex);
+            //Changes during the rebuild might not be part of the new index
+            changedDuringRebuild.remove(type).forEach(id -> this.reindex(type, typeIndex, id));
+            LOG.debug("Rebuilt autocomplete index of {} with {} entities in {} ms",
+                    type, typeIndex.size(), System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            changedDuringRebuild.remove(type);
+            LOG.error(String.format("Error rebuilding the autocomplete index of %s", type), e);
+        }
+    }
+
+    private void reindex(String type, TypeIndex typeIndex, String id) {
+        Map document = mongoTemplate.findOne(this.query().addCriteria(where("_id").is(id)), Map.class, type);
+        if (document == null) {
+            typeIndex.remove(id);
+        } else {
+            typeIndex.put(id, texts(document));
+        }
+    }
+
+    private Query query() {
+        Query query = new Query();
+        fields.forEach(field -> query.fields().include(field));
+        return query;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> texts(Map document) {
+        List<String> texts = new ArrayList<>();
+        fields.forEach(field -> {
+            Object value = document;
+            for (String part : field.split("\\.")) {
+                value = value instanceof Map ? ((Map<String, Object>) value).get(part) : null;
+            }
+            if (value != null) {
+                texts.add(value.toString().toLowerCase(Locale.ROOT));
+            }
+        });
+        return texts;
+    }
+
+    private static Set<String> ngrams(String text) {
+        Set<String> ngrams = new HashSet<>();
+        for (int i = 0; i + NGRAM <= text.length(); i++) {
+            ngrams.add(text.substring(i, i + NGRAM));
+        }
+        return ngrams;
+    }
+
+    private static class TypeIndex {
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final Map<String, Set<String>> postings = new HashMap<>();
+        private long sequence;
+
+        void put(String id, List<String> texts) {
+            lock.writeLock().lock();
+            try {
+                Entry previous = entries.get(id);
+                if (previous != null) {
+                    this.removePostings(id, previous);
+                }
+                //Updated entities keep their position, so the order of the suggestions is stable
+                Entry entry = new Entry(previous != null ? previous.sequence : sequence++, texts);
+                entries.put(id, entry);
+                texts.forEach(text -> ngrams(text).forEach(ngram ->
+                        postings.computeIfAbsent(ngram, key -> new HashSet<>()).add(id)));
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String id) {
+            lock.writeLock().lock();
+            try {
+                Entry entry = entries.remove(id);
+                if (entry != null) {
+                    this.removePostings(id, entry);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        List<String> search(List<String> parts) {
+            lock.readLock().lock();
+            try {
+                Set<String> candidates = null;
+                for (String part : parts) {
+                    //Parts shorter than the ngram size can't use the postings and are verified below
+                    for (String ngram : ngrams(part)) {
+                        Set<String> ids = postings.get(ngram);
+                        if (ids == null) {
+                            return new ArrayList<>();
+                        }
+                        if (candidates == null) {
+                            candidates = new HashSet<>(ids);
+                        } else {
+                            candidates.retainAll(ids);
+                        }
+                    }
+                }
+                Collection<String> ids = candidates != null ? candidates : entries.keySet();
+                return ids.stream()
+                        .filter(id -> entries.get(id).matches(parts))
+                        .sorted(Comparator.comparingLong(id -> entries.get(id).sequence))
+                        .collect(toList());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void removePostings(String id, Entry entry) {
+            entry.texts.forEach(text -> ngrams(text).forEach(ngram -> {
+                Set<String> ids = postings.get(ngram);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        postings.remove(ngram);
+                    }
+                }
+            }));
+        }
+    }
+
+    private static class Entry {
+
+        private final long sequence;
+        private final List<String> texts;
+
+        private Entry(long sequence, List<String> texts) {
+            this.sequence = sequence;
+            this.texts = texts;
+        }
+
+        private boolean matches(List<String> parts) {
+            return parts.stream().allMatch(part -> texts.stream().anyMatch(text -> text.contains(part)));
+        }
+    }
+}
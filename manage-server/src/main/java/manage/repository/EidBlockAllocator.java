@@ -0,0 +1,67 @@
+package manage.repository;
+
+import manage.mongo.Sequence;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Hi/lo allocator for the EID. A block of EIDs is reserved with one atomic increment of the sequence, so the blocks of
+ * different nodes never overlap, and the EIDs of a block are handed out from memory without locking. Only reserving
+ * the next block is serialized.
+ * <p>
+ * The unused EIDs of a block are lost when the application stops, so EIDs are unique but not contiguous.
+ */
+public class EidBlockAllocator {
+
+    static final String SEQUENCE = "sequence";
+
+    private final MongoTemplate mongoTemplate;
+    private final long blockSize;
+    private final AtomicReference<Block> current = new AtomicReference<>(new Block(0L, 0L));
+
+    public EidBlockAllocator(MongoTemplate mongoTemplate, long blockSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.blockSize = Math.max(1L, blockSize);
+    }
+
+    public Long next() {
+        while (true) {
+            Block block = current.get();
+            long eid = block.next.incrementAndGet();
+            if (eid <= block.max) {
+                return eid;
+            }
+            synchronized (this) {
+                //Another thread might already have reserved a new block
+                if (current.get() == block) {
+                    current.set(this.reserve());
+                }
+            }
+        }
+    }
+
+    private Block reserve() {
+        Sequence sequence = mongoTemplate.findAndModify(new Query(where("_id").is(SEQUENCE)),
+                new Update().inc("value", blockSize), FindAndModifyOptions.options().returnNew(true), Sequence.class);
+        long max = sequence.getValue();
+        return new Block(max - blockSize, max);
+    }
+
+    private static class Block {
+
+        private final AtomicLong next;
+        private final long max;
+
+        private Block(long last, long max) {
+            this.next = new AtomicLong(last);
+            this.max = max;
+        }
+    }
+}
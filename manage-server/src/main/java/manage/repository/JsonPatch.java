@@ -0,0 +1,236 @@
+package manage.repository;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Minimal RFC 6902 JSON Patch with the add, remove and replace operations on maps and lists. Lists are diffed with
+ * the longest common subsequence of the elements between their common prefix and suffix, so adding or removing a
+ * single entry anywhere in a large list - e.g. the allowedEntities - results in a single operation.
+ */
+public class JsonPatch {
+
+    public static final String OP = "op";
+    public static final String PATH = "path";
+    public static final String VALUE = "value";
+
+    private static final String ADD = "add";
+    private static final String REMOVE = "remove";
+    private static final String REPLACE = "replace";
+
+    //Larger lists fall back to an element by element diff of the elements between the common prefix and suffix
+    private static final long MAX_LCS_CELLS = 1_000_000L;
+
+    private JsonPatch() {
+    }
+
+    public static List<Map<String, Object>> diff(Map<String, Object> source, Map<String, Object> target) {
+        List<Map<String, Object>> operations = new ArrayList<>();
+        diffMaps("", source, target, operations);
+        return operations;
+    }
+
+    /**
+     * Returns a patched copy, the source is not modified.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> apply(Map<String, Object> source, List<Map<String, Object>> operations) {
+        Map<String, Object> result = (Map<String, Object>) deepCopy(source);
+        operations.forEach(operation -> applyOperation(result, operation));
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void diffMaps(String path, Map<String, Object> source, Map<String, Object> target,
+                                 List<Map<String, Object>> operations) {
+        source.forEach((key, value) -> {
+            if (!target.containsKey(key)) {
+                operations.add(operation(REMOVE, path + "/" + escape(key), null));
+            }
+        });
+        target.forEach((key, value) -> {
+            String childPath = path + "/" + escape(key);
+            if (!source.containsKey(key)) {
+                operations.add(operation(ADD, childPath, value));
+            } else {
+                diffValues(childPath, source.get(key), value, operations);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void diffValues(String path, Object source, Object target, List<Map<String, Object>> operations) {
+        if (equal(source, target)) {
+            return;
+        }
+        if (source instanceof Map && target instanceof Map) {
+            diffMaps(path, (Map<String, Object>) source, (Map<String, Object>) target, operations);
+        } else if (source instanceof List && target instanceof List) {
+            diffLists(path, (List<Object>) source, (List<Object>) target, operations);
+        } else {
+            operations.add(operation(REPLACE, path, target));
+        }
+    }
+
+    private static void diffLists(String path, List<Object> source, List<Object> target,
+                                  List<Map<String, Object>> operations) {
+        int prefix = 0;
+        while (prefix < source.size() && prefix < target.size() && equal(source.get(prefix), target.get(prefix))) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < source.size() - prefix && suffix < target.size() - prefix &&
+                equal(source.get(source.size() - 1 - suffix), target.get(target.size() - 1 - suffix))) {
+            suffix++;
+        }
+        List<Object> sourceMiddle = source.subList(prefix, source.size() - suffix);
+        List<Object> targetMiddle = target.subList(prefix, target.size() - suffix);
+        if ((long) sourceMiddle.size() * targetMiddle.size() > MAX_LCS_CELLS) {
+            diffPositional(path, prefix, sourceMiddle, targetMiddle, operations);
+            return;
+        }
+        //Longest common subsequence of the elements between the common prefix and suffix
+        int[][] lcs = new int[sourceMiddle.size() + 1][targetMiddle.size() + 1];
+        for (int i = sourceMiddle.size() - 1; i >= 0; i--) {
+            for (int j = targetMiddle.size() - 1; j >= 0; j--) {
+                lcs[i][j] = equal(sourceMiddle.get(i), targetMiddle.get(j)) ? lcs[i + 1][j + 1] + 1 :
+                        Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        //The operations are applied in order, so index is the position in the partially patched list
+        int index = prefix;
+        int i = 0;
+        int j = 0;
+        while (i < sourceMiddle.size() || j < targetMiddle.size()) {
+            if (i < sourceMiddle.size() && j < targetMiddle.size() && equal(sourceMiddle.get(i), targetMiddle.get(j))) {
+                i++;
+                j++;
+                index++;
+            } else if (i < sourceMiddle.size() && j < targetMiddle.size() && lcs[i + 1][j + 1] == lcs[i][j]) {
+                //A changed element is diffed in place instead of removed and added
+                diffValues(path + "/" + index, sourceMiddle.get(i), targetMiddle.get(j), operations);
+                i++;
+                j++;
+                index++;
+            } else if (j < targetMiddle.size() && (i == sourceMiddle.size() || lcs[i][j + 1] >= lcs[i + 1][j])) {
+                operations.add(operation(ADD, path + "/" + index, targetMiddle.get(j)));
+                j++;
+                index++;
+            } else {
+                operations.add(operation(REMOVE, path + "/" + index, null));
+                i++;
+            }
+        }
+    }
+
+    private static void diffPositional(String path, int offset, List<Object> source, List<Object> target,
+                                       List<Map<String, Object>> operations) {
+        int common = Math.min(source.size(), target.size());
+        for (int i = 0; i < common; i++) {
+            diffValues(path + "/" + (offset + i), source.get(i), target.get(i), operations);
+        }
+        //Remove from the end, so the indexes of the remaining elements are not shifted
+        for (int i = source.size() - 1; i >= common; i--) {
+            operations.add(operation(REMOVE, path + "/" + (offset + i), null));
+        }
+        for (int i = common; i < target.size(); i++) {
+            operations.add(operation(ADD, path + "/" + (offset + i), target.get(i)));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void applyOperation(Map<String, Object> document, Map<String, Object> operation) {
+        String op = (String) operation.get(OP);
+        String[] tokens = ((String) operation.get(PATH)).substring(1).split("/", -1);
+        Object parent = document;
+        for (int i = 0; i < tokens.length - 1; i++) {
+            parent = parent instanceof Map ? ((Map<String, Object>) parent).get(unescape(tokens[i])) :
+                    ((List<Object>) parent).get(Integer.parseInt(tokens[i]));
+        }
+        String last = tokens[tokens.length - 1];
+        Object value = deepCopy(operation.get(VALUE));
+        if (parent instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) parent;
+            if (REMOVE.equals(op)) {
+                map.remove(unescape(last));
+            } else {
+                map.put(unescape(last), value);
+            }
+        } else if (parent instanceof List) {
+            List<Object> list = (List<Object>) parent;
+            int index = "-".equals(last) ? list.size() : Integer.parseInt(last);
+            if (REMOVE.equals(op)) {
+                list.remove(index);
+            } else if (ADD.equals(op)) {
+                list.add(index, value);
+            } else {
+                list.set(index, value);
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid path " + operation.get(PATH));
+        }
+    }
+
+    /**
+     * Structural equality, as not every Map implementation - e.g. a bson Document - equals a Map with the same entries.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean equal(Object source, Object target) {
+        if (source instanceof Map && target instanceof Map) {
+            Map<String, Object> sourceMap = (Map<String, Object>) source;
+            Map<String, Object> targetMap = (Map<String, Object>) target;
+            return sourceMap.size() == targetMap.size() && sourceMap.entrySet().stream().allMatch(entry ->
+                    targetMap.containsKey(entry.getKey()) && equal(entry.getValue(), targetMap.get(entry.getKey())));
+        }
+        if (source instanceof List && target instanceof List) {
+            List<Object> sourceList = (List<Object>) source;
+            List<Object> targetList = (List<Object>) target;
+            if (sourceList.size() != targetList.size()) {
+                return false;
+            }
+            for (int i = 0; i < sourceList.size(); i++) {
+                if (!equal(sourceList.get(i), targetList.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Objects.equals(source, target);
+    }
+
+    private static Map<String, Object> operation(String op, String path, Object value) {
+        Map<String, Object> operation = new LinkedHashMap<>();
+        operation.put(OP, op);
+        operation.put(PATH, path);
+        if (!REMOVE.equals(op)) {
+            operation.put(VALUE, value);
+        }
+        return operation;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object deepCopy(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((key, child) -> copy.put(key, deepCopy(child)));
+            return copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach(child -> copy.add(deepCopy(child)));
+            return copy;
+        }
+        return value;
+    }
+
+    private static String escape(String key) {
+        return key.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static String unescape(String token) {
+        return token.replace("~1", "/").replace("~0", "~");
+    }
+}
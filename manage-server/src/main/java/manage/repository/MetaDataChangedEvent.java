@@ -0,0 +1,41 @@
+package manage.repository;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Collection;
+
+/**
+ * Published by the MetaDataRepository after MetaData is inserted, updated or removed. An event without an id
+ * signals that more than one document of the type has changed. The ids of a bulk change are included when they are
+ * known, otherwise an unknown number of documents may have changed.
+ */
+@Getter
+@AllArgsConstructor
+public class MetaDataChangedEvent {
+
+    private final String type;
+    private final String id;
+    private final boolean deleted;
+    private final Collection<String> ids;
+
+    public static MetaDataChangedEvent changed(String type, String id) {
+        return new MetaDataChangedEvent(type, id, false, null);
+    }
+
+    public static MetaDataChangedEvent deleted(String type, String id) {
+        return new MetaDataChangedEvent(type, id, true, null);
+    }
+
+    public static MetaDataChangedEvent bulk(String type) {
+        return new MetaDataChangedEvent(type, null, false, null);
+    }
+
+    public static MetaDataChangedEvent bulk(String type, Collection<String> ids) {
+        return new MetaDataChangedEvent(type, null, false, ids);
+    }
+
+    public boolean isBulk() {
+        return id == null;
+    }
+}
@@ -1,71 +1,305 @@
 package manage.repository;
 
+import com.mongodb.bulk.BulkWriteResult;
+import manage.exception.InvalidContinuationTokenException;
+import manage.model.EntityReferences;
 import manage.model.EntityType;
+import manage.model.KeysetPage;
 import manage.model.MetaData;
-import manage.model.StatsEntry;
-import manage.mongo.Sequence;
+import manage.model.RevisionSummary;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.BasicQuery;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.CriteriaDefinition;
 import org.springframework.data.mongodb.core.query.Field;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Repository;
 import org.springframework.util.StringUtils;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static manage.mongo.MongoChangelog.REVISION_POSTFIX;
 
 /**
  * We can't use the Spring JPA repositories as we at runtime need to decide which collection to use. We only have one
  * Document type - e.g. MetaData - and more then one MetaData collections.
  */
 @Repository
-public class MetaDataRepository {
+public class MetaDataRepository implements ApplicationEventPublisherAware, EnvironmentAware {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetaDataRepository.class);
 
     private static final int AUTOCOMPLETE_LIMIT = 16;
 
+    private static final String TEXT_SCORE = "score";
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final Pattern REGEX_METACHARACTERS = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+
     private MongoTemplate mongoTemplate;
     private List<String> supportedLanguages;
 
-    private FindAndModifyOptions options = FindAndModifyOptions.options().returnNew(true);
+    private ApplicationEventPublisher eventPublisher;
+
+    private AutoCompleteIndex autoCompleteIndex;
+
+    private EidBlockAllocator eidBlockAllocator;
+
+    private RevisionStore revisionStore;
+
+    private ReferenceIndex referenceIndex;
+
+    private boolean explainSearches;
 
     @Autowired
     public MetaDataRepository(MongoTemplate mongoTemplate,
-                              @Value("${product.supported_languages}") String supportedLanguages) {
+                              @Value("${product.supported_languages}") String supportedLanguages,
+                              @Value("${eid_block_size}") long eidBlockSize) {
         this.mongoTemplate = mongoTemplate;
+        this.eidBlockAllocator = new EidBlockAllocator(mongoTemplate, eidBlockSize);
         this.supportedLanguages = Stream.of(supportedLanguages.split(",")).map(String::trim).collect(toList());
     }
 
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.explainSearches = environment.acceptsProfiles(Profiles.of("dev"));
+    }
+
+    @Autowired(required = false)
+    public void setRevisionStore(RevisionStore revisionStore) {
+        this.revisionStore = revisionStore;
+    }
+
+    @Autowired(required = false)
+    public void setReferenceIndex(ReferenceIndex referenceIndex) {
+        this.referenceIndex = referenceIndex;
+    }
+
+    @Autowired(required = false)
+    public void setAutoCompleteIndex(AutoCompleteIndex autoCompleteIndex) {
+        this.autoCompleteIndex = autoCompleteIndex;
+    }
+
     public MetaData findById(String id, String type) {
+        if (isDeltaRevisionType(type)) {
+            return revisionStore.findById(id, type);
+        }
         return mongoTemplate.findById(id, MetaData.class, type);
     }
 
     public MetaData save(MetaData metaData) {
-        mongoTemplate.insert(metaData, metaData.getType());
+        if (isDeltaRevisionType(metaData.getType()) && revisionStore.isEnabled()) {
+            revisionStore.insert(metaData);
+        } else {
+            mongoTemplate.insert(metaData, metaData.getType());
+        }
+        publish(MetaDataChangedEvent.changed(metaData.getType(), metaData.getId()));
         return metaData;
     }
 
     public void remove(MetaData metaData) {
         mongoTemplate.remove(metaData, metaData.getType());
+        publish(MetaDataChangedEvent.deleted(metaData.getType(), metaData.getId()));
     }
 
     public List<MetaData> revisions(String type, String parentId) {
-        Query query = new Query(Criteria.where("revision.parentId").is(parentId));
-        return mongoTemplate.find(query, MetaData.class, type);
+        if (isDeltaRevisionType(type)) {
+            return revisionStore.find(revisionsQuery(parentId), type);
+        }
+        return mongoTemplate.find(revisionsQuery(parentId), MetaData.class, type);
+    }
+
+    public KeysetPage<MetaData> revisionsPage(String type, String parentId, int pageSize, String continuationToken,
+                                              boolean includeTotal) {
+        if (isDeltaRevisionType(type)) {
+            KeysetPage<Document> page = page(revisionsQuery(parentId), Document.class, document -> document.get("_id"),
+                    type, pageSize, continuationToken, includeTotal);
+            Map<Object, Document> reconstructed = new HashMap<>();
+            List<MetaData> revisions = page.getResults().stream()
+                    .map(document -> revisionStore.toMetaData(document, type, reconstructed))
+                    .collect(toList());
+            return new KeysetPage<>(revisions, page.getContinuationToken(), page.getTotal());
+        }
+        return page(revisionsQuery(parentId), MetaData.class, MetaData::getId, type, pageSize, continuationToken,
+                includeTotal);
+    }
+
+    /**
+     * The summaries of the revisions of the parent, newest first. Revision numbers are not unique - e.g. after a
+     * restore - so pages are keyed on the revision number and the _id. The number is served by the compound
+     * revision.parentId / revision.number index.
+     */
+    public KeysetPage<RevisionSummary> revisionSummaries(String type, String parentId, int pageSize,
+                                                         String continuationToken, boolean includeTotal) {
+        int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        Query query = revisionsQuery(parentId);
+        Long total = includeTotal ? mongoTemplate.count(query, type) : null;
+        if (StringUtils.hasText(continuationToken)) {
+            String[] key = decodeContinuationToken(continuationToken).split(":", 2);
+            if (key.length != 2 || !isNumeric(key[0])) {
+                throw new InvalidContinuationTokenException(String.format("Invalid continuation token %s", continuationToken));
+            }
+            int number = Integer.parseInt(key[0]);
+            query.addCriteria(new Criteria().orOperator(
+                    Criteria.where("revision.number").lt(number),
+                    Criteria.where("revision.number").is(number).and("_id").lt(key[1])));
+        }
+        query.fields().include("revision").include("data.revisionnote");
+        query.with(Sort.by(Sort.Direction.DESC, "revision.number", "_id")).limit(limit + 1);
+        List<RevisionSummary> summaries = mongoTemplate.find(query, MetaData.class, type).stream()
+                .map(RevisionSummary::of)
+                .collect(toList());
+        if (summaries.size() <= limit) {
+            return new KeysetPage<>(summaries, null, total);
+        }
+        List<RevisionSummary> page = new ArrayList<>(summaries.subList(0, limit));
+        RevisionSummary last = page.get(limit - 1);
+        String nextToken = encodeContinuationToken(last.getNumber() + ":" + last.getId());
+        return new KeysetPage<>(page, nextToken, total);
+    }
+
+    /**
+     * Revisions might be stored as deltas - see the RevisionStore - and must be reconstructed when read.
+     */
+    private boolean isDeltaRevisionType(String type) {
+        return revisionStore != null && revisionStore.isRevisionType(type);
+    }
+
+    private Query revisionsQuery(String parentId) {
+        return new Query(Criteria.where("revision.parentId").is(parentId));
     }
 
     public void update(MetaData metaData) {
         mongoTemplate.save(metaData, metaData.getType());
+        publish(MetaDataChangedEvent.changed(metaData.getType(), metaData.getId()));
+    }
+
+    /**
+     * All MetaData of the type that reference the entityId - or scope - in one of the relations, e.g. allowedEntities.
+     * Once the reference index is complete, only the MetaData the index knows of are read.
+     */
+    public List<MetaData> findReferences(String type, Collection<String> relations, String entityId) {
+        if (referenceIndex == null || !referenceIndex.isComplete()) {
+            return this.scanReferences(type, relations, entityId);
+        }
+        List<String> ids = referenceIndex.referencing(type, relations, entityId).stream()
+                .map(EntityReferences::getId)
+                .collect(toList());
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        //The MetaData itself is the source of truth, the reference index only narrows the query down to the ids
+        Criteria references = new Criteria().andOperator(Criteria.where("_id").in(ids), referencesCriteria(relations, entityId));
+        return mongoTemplate.find(new Query(references), MetaData.class, type);
+    }
+
+    /**
+     * Same as findReferences, but never uses the reference index. For checks that must not miss a reference made
+     * outside of the application that the index does not know of yet.
+     */
+    public List<MetaData> scanReferences(String type, Collection<String> relations, String entityId) {
+        return mongoTemplate.find(new Query(referencesCriteria(relations, entityId)), MetaData.class, type);
+    }
+
+    private Criteria referencesCriteria(Collection<String> relations, String entityId) {
+        Criteria[] criteria = relations.stream()
+                .map(relation -> Criteria.where(ReferenceIndex.path(relation)).is(entityId))
+                .toArray(Criteria[]::new);
+        return new Criteria().orOperator(criteria);
+    }
+
+    /**
+     * Stores a revision of the current version of every - already modified - MetaData and saves the MetaData as the
+     * latest revision, using bulk writes instead of a find, insert and update per MetaData.
+     * <p>
+     * Nothing is written if one of the MetaData has been modified - or removed - since it was read. A modification
+     * between this check and the bulk update is still detected by the optimistic locking of the update.
+     */
+    public void updateWithRevisions(String type, List<MetaData> updated, String updatedBy, String revisionNote) {
+        if (updated.isEmpty()) {
+            return;
+        }
+        List<String> ids = updated.stream().map(MetaData::getId).collect(toList());
+        List<MetaData> revisions = mongoTemplate.find(new Query(Criteria.where("_id").in(ids)), MetaData.class, type);
+        Map<String, Long> versions = new HashMap<>();
+        revisions.forEach(previous -> versions.put(previous.getId(), previous.getVersion()));
+        long modified = updated.stream()
+                .filter(metaData -> !versions.containsKey(metaData.getId()) ||
+                        !Objects.equals(versions.get(metaData.getId()), metaData.getVersion()))
+                .count();
+        if (modified > 0) {
+            throw new OptimisticLockingFailureException(String.format(
+                    "%s of the %s MetaData of type %s were modified concurrently", modified, updated.size(), type));
+        }
+        revisions.forEach(previous -> previous.revision(UUID.randomUUID().toString()));
+        String revisionType = type.concat(REVISION_POSTFIX);
+        if (isDeltaRevisionType(revisionType) && revisionStore.isEnabled()) {
+            revisions.forEach(revisionStore::insert);
+        } else {
+            mongoTemplate.insert(revisions, revisionType);
+        }
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, type);
+        updated.forEach(metaData -> {
+            metaData.promoteToLatest(updatedBy, revisionNote);
+            Document document = new Document();
+            mongoTemplate.getConverter().write(metaData, document);
+            //Same optimistic locking as the MongoTemplate#save of the single update
+            Long version = metaData.getVersion();
+            document.put("version", version == null ? 0L : version + 1);
+            Query query = new Query(Criteria.where("_id").is(metaData.getId()).and("version").is(version));
+            bulkOperations.replaceOne(query, document);
+        });
+        BulkWriteResult result = bulkOperations.execute();
+        publish(MetaDataChangedEvent.bulk(type, ids));
+        if (result.getMatchedCount() != updated.size()) {
+            throw new OptimisticLockingFailureException(String.format(
+                    "%s of the %s MetaData of type %s were modified concurrently",
+                    updated.size() - result.getMatchedCount(), updated.size(), type));
+        }
     }
 
     public MongoTemplate getMongoTemplate() {
@@ -77,6 +311,11 @@ public class MetaDataRepository {
         if ("*".equals(search)) {
             return mongoTemplate.find(query, Map.class, type);
         }
+        Optional<List<String>> indexed = autoCompleteIndex == null ? Optional.empty() :
+                autoCompleteIndex.search(type, search);
+        if (indexed.isPresent()) {
+            return this.autoCompleteIndexed(type, indexed.get());
+        }
         String escapedSearch = escapeSpecialChars(search);
         query.limit(AUTOCOMPLETE_LIMIT);
         Criteria criteria = new Criteria();
@@ -95,6 +334,50 @@ public class MetaDataRepository {
         return mongoTemplate.find(query, Map.class, type);
     }
 
+    /**
+     * Fetches the matches of the AutoCompleteIndex until there are enough results. Matches that no longer exist are
+     * removed from the index.
+     */
+    private List<Map> autoCompleteIndexed(String type, List<String> ids) {
+        List<Map> results = new ArrayList<>();
+        for (int i = 0; i < ids.size() && results.size() < AUTOCOMPLETE_LIMIT; i += AUTOCOMPLETE_LIMIT) {
+            List<String> batch = ids.subList(i, Math.min(ids.size(), i + AUTOCOMPLETE_LIMIT));
+            Query query = queryWithSamlFields().addCriteria(Criteria.where("_id").in(batch));
+            List<Map> found = mongoTemplate.find(query, Map.class, type);
+            Set<String> foundIds = found.stream().map(map -> String.valueOf(map.get("_id"))).collect(toSet());
+            autoCompleteIndex.evict(type, batch.stream().filter(id -> !foundIds.contains(id)).collect(toList()));
+            found.stream().limit(AUTOCOMPLETE_LIMIT - results.size()).forEach(results::add);
+        }
+        return results;
+    }
+
+    /**
+     * Full-text search on the text index of the collection. Every supported language is queried with its own
+     * stemming and the results are merged by their best score.
+     */
+    public List<Map> textSearch(String type, String search, int limit) {
+        Map<Object, Map> results = new HashMap<>();
+        this.supportedLanguages.forEach(lang -> {
+            TextQuery query = TextQuery.queryText(TextCriteria.forLanguage(lang).matching(search));
+            query.setScoreFieldName(TEXT_SCORE);
+            query.sortByScore().limit(limit);
+            Field fields = query.fields();
+            fields.include("version").include("type").include("data.state").include("data.entityid");
+            this.supportedLanguages.forEach(language -> fields.include("data.metaDataFields.name:" + language));
+            mongoTemplate.find(query, Map.class, type).forEach(result -> results.merge(result.get("_id"), result,
+                    (existing, candidate) -> score(candidate) > score(existing) ? candidate : existing));
+        });
+        return results.values().stream()
+                .sorted(Comparator.comparingDouble(this::score).reversed())
+                .limit(limit)
+                .collect(toList());
+    }
+
+    private double score(Map result) {
+        Object score = result.get(TEXT_SCORE);
+        return score instanceof Number ? ((Number) score).doubleValue() : 0D;
+    }
+
     public List<Map> allServiceProviderEntityIds() {
         Query query = new Query();
         query
@@ -108,7 +391,9 @@ public class MetaDataRepository {
 
     public long deleteAllImportedServiceProviders() {
         Query query = new Query(Criteria.where("data.metaDataFields.coin:imported_from_edugain").is(true));
-        return mongoTemplate.remove(query, EntityType.SP.getType()).getDeletedCount();
+        long deletedCount = mongoTemplate.remove(query, EntityType.SP.getType()).getDeletedCount();
+        publish(MetaDataChangedEvent.bulk(EntityType.SP.getType()));
+        return deletedCount;
     }
 
     public long countAllImportedServiceProviders() {
@@ -117,6 +402,12 @@ public class MetaDataRepository {
     }
 
 
+    private void publish(MetaDataChangedEvent event) {
+        if (eventPublisher != null) {
+            eventPublisher.publishEvent(event);
+        }
+    }
+
     protected String escapeSpecialChars(String query) {
         return query.replaceAll("([\\Q\\/$^.?*+{}()|[]\\E])", "\\\\$1");
     }
@@ -145,6 +436,54 @@ public class MetaDataRepository {
 
     public List<Map> search(String type, Map<String, Object> properties, List<String> requestedAttributes, Boolean
             allAttributes, Boolean logicalOperatorIsAnd) {
+        Query query = searchQuery(type, properties, requestedAttributes, allAttributes, logicalOperatorIsAnd);
+        if (explainSearches) {
+            explain(type, query);
+        }
+        if (isDeltaRevisionType(type)) {
+            Map<Object, Document> reconstructed = new HashMap<>();
+            return mongoTemplate.find(query, Document.class, type).stream()
+                    .map(document -> revisionStore.reconstructData(document, type, reconstructed))
+                    .collect(toList());
+        }
+        return mongoTemplate.find(query, Map.class, type);
+    }
+
+    /**
+     * Same query as the search, but the results are handed to the consumer one by one while the cursor is read.
+     */
+    public void streamSearch(String type, Map<String, Object> properties, List<String> requestedAttributes,
+                             Boolean allAttributes, Boolean logicalOperatorIsAnd, Consumer<Map> consumer) {
+        Query query = searchQuery(type, properties, requestedAttributes, allAttributes, logicalOperatorIsAnd);
+        if (isDeltaRevisionType(type)) {
+            try (CloseableIterator<Document> iterator = mongoTemplate.stream(query, Document.class, type)) {
+                iterator.forEachRemaining(document ->
+                        consumer.accept(revisionStore.reconstructData(document, type, new HashMap<>())));
+            }
+            return;
+        }
+        try (CloseableIterator<Map> iterator = mongoTemplate.stream(query, Map.class, type)) {
+            iterator.forEachRemaining(consumer);
+        }
+    }
+
+    public KeysetPage<Map> searchPage(String type, Map<String, Object> properties, List<String> requestedAttributes,
+                                      Boolean allAttributes, Boolean logicalOperatorIsAnd, int pageSize,
+                                      String continuationToken, boolean includeTotal) {
+        Query query = searchQuery(type, properties, requestedAttributes, allAttributes, logicalOperatorIsAnd);
+        if (isDeltaRevisionType(type)) {
+            KeysetPage<Document> page = page(query, Document.class, document -> document.get("_id"), type, pageSize,
+                    continuationToken, includeTotal);
+            Map<Object, Document> reconstructed = new HashMap<>();
+            return new KeysetPage<>(page.getResults().stream()
+                    .map(document -> (Map) revisionStore.reconstructData(document, type, reconstructed))
+                    .collect(toList()), page.getContinuationToken(), page.getTotal());
+        }
+        return page(query, Map.class, map -> map.get("_id"), type, pageSize, continuationToken, includeTotal);
+    }
+
+    private Query searchQuery(String type, Map<String, Object> properties, List<String> requestedAttributes,
+                              Boolean allAttributes, Boolean logicalOperatorIsAnd) {
         Query query = allAttributes ? new Query() : queryWithSamlFields();
         if (!allAttributes) {
             requestedAttributes.forEach(requestedAttribute -> {
@@ -154,6 +493,10 @@ public class MetaDataRepository {
             if (type.contains("revision")) {
                 query.fields().include("revision").include("data.revisionnote");
             }
+            if (isDeltaRevisionType(type)) {
+                //The patch is needed to reconstruct the requested attributes
+                query.fields().include(RevisionStore.DELTA);
+            }
         }
         List<CriteriaDefinition> criteriaDefinitions = new ArrayList<>();
 
@@ -169,11 +512,8 @@ public class MetaDataRepository {
                 criteriaDefinitions.add(Criteria.where("data.".concat(key)).is(Boolean.parseBoolean((String) value)));
             } else if (value instanceof String && StringUtils.hasText((String) value) && isNumeric((String) value)) {
                 criteriaDefinitions.add(Criteria.where("data.".concat(key)).is(Integer.parseInt((String) value)));
-            } else if ("*".equals(value)) {
-                criteriaDefinitions.add(Criteria.where("data.".concat(key)).regex(".*", "i"));
             } else if (value instanceof String && ((String) value).contains("*")) {
-                String queryString = (String) value;
-                criteriaDefinitions.add(Criteria.where("data.".concat(key)).regex(queryString, "i"));
+                criteriaDefinitions.add(wildcardCriteria("data.".concat(key), (String) value));
             } else if (value instanceof List && !((List) value).isEmpty()) {
                 List l = (List) value;
                 criteriaDefinitions.add(Criteria.where("data.".concat(key)).in(l));
@@ -190,17 +530,157 @@ public class MetaDataRepository {
         } else {
             query.addCriteria(new Criteria().orOperator(criteria));
         }
-        return mongoTemplate.find(query, Map.class, type);
+        if (isDeltaRevisionType(type)) {
+            revisionStore.checkSearchable(query, type);
+        }
+        return query;
+    }
+
+    /**
+     * Rewrites wildcards to criteria that can use an index. A single '*' only requires the field to be a string and a
+     * trailing '*' after a prefix without regular expression metacharacters becomes a - case-sensitive - range scan on
+     * the prefix. Any other wildcard is still matched with an unanchored case-insensitive regular expression, which
+     * requires a full scan.
+     */
+    protected Criteria wildcardCriteria(String key, String value) {
+        if ("*".equals(value)) {
+            //Same as the regular expression .* which only matches strings
+            return Criteria.where(key).type(BsonType.STRING.getValue());
+        }
+        int wildcard = value.indexOf('*');
+        String prefix = value.substring(0, wildcard);
+        if (wildcard == value.length() - 1 && !REGEX_METACHARACTERS.matcher(prefix).find()) {
+            Criteria criteria = Criteria.where(key).gte(prefix);
+            upperBound(prefix).ifPresent(criteria::lt);
+            return criteria;
+        }
+        return Criteria.where(key).regex(value, "i");
+    }
+
+    /**
+     * The smallest string larger than all strings starting with the prefix, if any.
+     */
+    private Optional<String> upperBound(String prefix) {
+        String trimmed = prefix.replaceAll("\uffff+$", "");
+        if (trimmed.isEmpty()) {
+            return Optional.empty();
+        }
+        int last = trimmed.length() - 1;
+        return Optional.of(trimmed.substring(0, last) + (char) (trimmed.charAt(last) + 1));
+    }
+
+    private void explain(String type, Query query) {
+        try {
+            Document command = new Document("explain", new Document("find", type).append("filter", query.getQueryObject()))
+                    .append("verbosity", "queryPlanner");
+            Document queryPlanner = mongoTemplate.getDb().runCommand(command).get("queryPlanner", Document.class);
+            LOG.info("Plan for search on {} with filter {}: {}", type, query.getQueryObject().toJson(),
+                    queryPlanner.get("winningPlan", Document.class).toJson());
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to explain the search on {}: {}", type, e.getMessage());
+        }
     }
 
     private boolean isNumeric(String value) {
         return value.matches("\\d+");
     }
 
+    /**
+     * The subset of the entityIds that exist in the collection, resolved with one query that only reads the entityid.
+     */
+    public Set<String> existingEntityIds(String type, Collection<String> entityIds) {
+        if (entityIds.isEmpty()) {
+            return new HashSet<>();
+        }
+        Query query = new Query(Criteria.where("data.entityid").in(entityIds));
+        query.fields().include("data.entityid");
+        return mongoTemplate.find(query, Map.class, type).stream()
+                .map(map -> (String) ((Map) map.get("data")).get("entityid"))
+                .collect(toSet());
+    }
+
     public List<MetaData> findRaw(String type, String query) {
+        if (isDeltaRevisionType(type)) {
+            BasicQuery basicQuery = new BasicQuery(query);
+            revisionStore.checkSearchable(basicQuery, type);
+            return revisionStore.find(basicQuery, type);
+        }
         return mongoTemplate.find(new BasicQuery(query), MetaData.class, type);
     }
 
+    public void streamRaw(String type, String query, Consumer<MetaData> consumer) {
+        if (isDeltaRevisionType(type)) {
+            BasicQuery basicQuery = new BasicQuery(query);
+            revisionStore.checkSearchable(basicQuery, type);
+            try (CloseableIterator<Document> iterator = mongoTemplate.stream(basicQuery, Document.class, type)) {
+                iterator.forEachRemaining(document ->
+                        consumer.accept(revisionStore.toMetaData(document, type, new HashMap<>())));
+            }
+            return;
+        }
+        try (CloseableIterator<MetaData> iterator = mongoTemplate.stream(new BasicQuery(query), MetaData.class, type)) {
+            iterator.forEachRemaining(consumer);
+        }
+    }
+
+    public KeysetPage<MetaData> findRawPage(String type, String query, int pageSize, String continuationToken,
+                                            boolean includeTotal) {
+        if (isDeltaRevisionType(type)) {
+            BasicQuery basicQuery = new BasicQuery(query);
+            revisionStore.checkSearchable(basicQuery, type);
+            KeysetPage<Document> page = page(basicQuery, Document.class, document -> document.get("_id"),
+                    type, pageSize, continuationToken, includeTotal);
+            Map<Object, Document> reconstructed = new HashMap<>();
+            return new KeysetPage<>(page.getResults().stream()
+                    .map(document -> revisionStore.toMetaData(document, type, reconstructed))
+                    .collect(toList()), page.getContinuationToken(), page.getTotal());
+        }
+        return page(new BasicQuery(query), MetaData.class, MetaData::getId, type, pageSize, continuationToken,
+                includeTotal);
+    }
+
+    public KeysetPage<Map> allPage(String type, int pageSize, String continuationToken, boolean includeTotal) {
+        return page(queryWithSamlFields(), Map.class, map -> map.get("_id"), type, pageSize, continuationToken,
+                includeTotal);
+    }
+
+    /**
+     * Keyset pagination on _id: a page is the first pageSize results with an _id larger than the last _id of the
+     * previous page, so every page is an indexed range scan regardless of how far the client has paged.
+     */
+    private <T> KeysetPage<T> page(Query query, Class<T> clazz, Function<T, Object> idExtractor, String type,
+                                   int pageSize, String continuationToken, boolean includeTotal) {
+        int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        Long total = includeTotal ? mongoTemplate.count(query, type) : null;
+        if (StringUtils.hasText(continuationToken)) {
+            //Combined with $and, as the query - e.g. a raw search - can have its own _id criteria
+            Document keyset = new Document("_id", new Document("$gt", decodeContinuationToken(continuationToken)));
+            Document queryObject = query.getQueryObject();
+            query = new BasicQuery(queryObject.isEmpty() ? keyset :
+                    new Document("$and", Arrays.asList(queryObject, keyset)), query.getFieldsObject());
+        }
+        query.with(Sort.by(Sort.Direction.ASC, "_id")).limit(limit + 1);
+        List<T> results = mongoTemplate.find(query, clazz, type);
+        if (results.size() <= limit) {
+            return new KeysetPage<>(results, null, total);
+        }
+        List<T> page = new ArrayList<>(results.subList(0, limit));
+        String nextToken = encodeContinuationToken(idExtractor.apply(page.get(limit - 1)));
+        return new KeysetPage<>(page, nextToken, total);
+    }
+
+    private String encodeContinuationToken(Object id) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String decodeContinuationToken(String continuationToken) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidContinuationTokenException(String.format("Invalid continuation token %s", continuationToken));
+        }
+    }
+
     public List<Map> whiteListing(String type, String state) {
         Query query = queryWithSamlFields().addCriteria(Criteria.where("data.state").is(state));
         query.fields()
@@ -215,17 +695,8 @@ public class MetaDataRepository {
         return metaData;
     }
 
-    public synchronized Long incrementEid() {
-        Update updateInc = new Update();
-        updateInc.inc("value", 1L);
-        Sequence res = mongoTemplate.findAndModify(new BasicQuery("{\"_id\":\"sequence\"}"), updateInc, options, Sequence.class);
-        return res.getValue();
-    }
-
-    public List<StatsEntry> stats() {
-        return mongoTemplate.getCollectionNames().stream()
-                .map(name -> new StatsEntry(name, mongoTemplate.count(new Query(), name)))
-                .collect(toList());
+    public Long incrementEid() {
+        return eidBlockAllocator.next();
     }
 
     private Query queryWithSamlFields() {
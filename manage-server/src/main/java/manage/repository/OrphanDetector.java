@@ -0,0 +1,140 @@
+package manage.repository;
+
+import manage.hook.EntityIdReconcilerHook;
+import manage.model.EntityReferences;
+import manage.model.EntityType;
+import manage.model.MetaData;
+import manage.model.OrphanMetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Finds the references - e.g. allowedEntities - to entityids that do not exist. The existing entityids of every type
+ * are read once with a distinct on the unique entityid index and the references come from the ReferenceIndex, so the
+ * orphans of a type are a set difference. All types are processed concurrently.
+ */
+@Component
+public class OrphanDetector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OrphanDetector.class);
+
+    private static final String REVISION_NOTE = "Removed reference to non-existent entityID";
+
+    private final MetaDataRepository metaDataRepository;
+    private final ReferenceIndex referenceIndex;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "orphans");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public OrphanDetector(MetaDataRepository metaDataRepository, ReferenceIndex referenceIndex) {
+        this.metaDataRepository = metaDataRepository;
+        this.referenceIndex = referenceIndex;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The orphans of all types, in the order of the EntityTypes.
+     */
+    public List<OrphanMetaData> orphans() {
+        //Repair the index for MetaData changed outside of the application before relying on it
+        referenceIndex.synchronizeAll();
+
+        MongoTemplate mongoTemplate = metaDataRepository.getMongoTemplate();
+        Map<String, CompletableFuture<Set<String>>> existingEntityIds = Stream.of(EntityType.values())
+                .map(EntityType::getType)
+                .collect(toMap(Function.identity(), type -> CompletableFuture.supplyAsync(() ->
+                        new HashSet<>(mongoTemplate.findDistinct(new Query(), "data.entityid", type, String.class)),
+                        executor)));
+        List<CompletableFuture<List<OrphanMetaData>>> orphans = Stream.of(EntityType.values())
+                .map(type -> CompletableFuture.supplyAsync(() -> this.orphans(type, existingEntityIds), executor))
+                .collect(toList());
+        return orphans.stream()
+                .map(CompletableFuture::join)
+                .flatMap(List::stream)
+                .collect(toList());
+    }
+
+    /**
+     * Removes all orphans with one bulk update - and one bulk insert of the revisions - per type.
+     */
+    @SuppressWarnings("unchecked")
+    public void deleteOrphans() {
+        Map<String, Map<String, List<OrphanMetaData>>> orphansByTypeAndId = this.orphans().stream()
+                .collect(groupingBy(OrphanMetaData::getCollection, groupingBy(OrphanMetaData::getId)));
+        orphansByTypeAndId.forEach((type, orphansById) -> {
+            List<MetaData> metaDataList = metaDataRepository.getMongoTemplate()
+                    .find(new Query(where("_id").in(orphansById.keySet())), MetaData.class, type);
+            metaDataList.forEach(metaData -> orphansById.get(metaData.getId()).forEach(orphan -> {
+                List<Map<String, Object>> entries =
+                        (List<Map<String, Object>>) metaData.getData().get(orphan.getReferencedCollectionName());
+                if (entries != null) {
+                    metaData.getData().put(orphan.getReferencedCollectionName(), entries.stream()
+                            .filter(entry -> !orphan.getMissingEntityId().equals(entry.get("name")))
+                            .collect(toList()));
+                }
+            }));
+            LOG.info("Removing orphan references from {} {}", metaDataList.size(), type);
+            metaDataRepository.updateWithRevisions(type, metaDataList, "System", REVISION_NOTE);
+        });
+    }
+
+    private List<OrphanMetaData> orphans(EntityType type, Map<String, CompletableFuture<Set<String>>> existingEntityIds) {
+        List<EntityReferences> metaDataWithReferences = referenceIndex.withReferences(type.getType());
+
+        Map<String, Map<String, List<EntityReferences>>> groupedByEntityIdReference = new HashMap<>();
+        ReferenceIndex.RELATIONS.forEach(relation -> metaDataWithReferences.forEach(entityReferences ->
+                entityReferences.getReferences().stream()
+                        .filter(reference -> reference.getRelation().equals(relation))
+                        .forEach(reference -> groupedByEntityIdReference
+                                .computeIfAbsent(reference.getName(), k -> new HashMap<>())
+                                .computeIfAbsent(relation, m -> new ArrayList<>())
+                                .add(entityReferences))));
+
+        Set<String> existing = EntityIdReconcilerHook.metaDataTypesForeignKeyRelations(type.getType()).stream()
+                .map(entityType -> existingEntityIds.get(entityType).join())
+                .flatMap(Set::stream)
+                .collect(toSet());
+        return groupedByEntityIdReference.entrySet().stream()
+                .filter(entry -> !existing.contains(entry.getKey()))
+                .flatMap(entry -> entry.getValue().entrySet().stream().flatMap(relation ->
+                        relation.getValue().stream().map(entityReferences -> new OrphanMetaData(
+                                entry.getKey(),
+                                entityReferences.getEntityId(),
+                                entityReferences.getName(),
+                                relation.getKey(),
+                                entityReferences.getId(),
+                                type.getType()))))
+                .collect(toList());
+    }
+}
@@ -0,0 +1,326 @@
+package manage.repository;
+
+import manage.model.EntityReferences;
+import manage.model.EntityType;
+import manage.model.MetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Reverse index of the references between MetaData, stored in the entity_references collection. Every MetaData has
+ * one document with its entityid and all the entityids - and scopes - it references, so "who references entityid X"
+ * is a single index lookup instead of a scan of the embedded lists of all MetaData.
+ * <p>
+ * The index is updated after every change made through the MetaDataRepository. Changes made outside of the
+ * application are picked up by comparing the versions with the MetaData, which is done at startup, periodically and
+ * on demand before the orphans are computed.
+ * <p>
+ * The references of changed MetaData are updated on the thread that changed them, so the index is up-to-date when the
+ * change returns. Only a change of an unknown number of MetaData is synchronized on the executor. No locks are needed:
+ * the index only accepts references of a newer version of the MetaData than it already has, so an outdated read can
+ * not overwrite a newer one.
+ */
+@Component
+public class ReferenceIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReferenceIndex.class);
+
+    public static final List<String> RELATIONS = Arrays.asList(
+            "allowedEntities", "disableConsent", "stepupEntities", "mfaEntities", "allowedResourceServers");
+
+    public static final String SCOPES = "scopes";
+
+    private static final List<String> INDEXED_TYPES = Stream.of(EntityType.values())
+            .map(EntityType::getType)
+            .collect(toList());
+
+    private static final int REFRESH_BATCH_SIZE = 500;
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final long refreshMinutes;
+
+    private volatile boolean complete;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reference-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public ReferenceIndex(MongoTemplate mongoTemplate,
+                          @Value("${references.refresh_minutes}") long refreshMinutes) {
+        this.mongoTemplate = mongoTemplate;
+        this.refreshMinutes = refreshMinutes;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        executor.execute(this::doSynchronizeAll);
+        if (refreshMinutes > 0) {
+            executor.scheduleWithFixedDelay(this::doSynchronizeAll, refreshMinutes, refreshMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @EventListener
+    public void onMetaDataChanged(MetaDataChangedEvent event) {
+        String type = event.getType();
+        if (!INDEXED_TYPES.contains(type)) {
+            return;
+        }
+        if (event.isBulk() && event.getIds() == null) {
+            executor.execute(() -> this.synchronizeQuietly(type));
+            return;
+        }
+        try {
+            if (event.isDeleted()) {
+                this.remove(singletonList(event.getId()));
+            } else if (event.isBulk()) {
+                this.refreshInBatches(type, new ArrayList<>(event.getIds()));
+            } else {
+                this.refresh(type, singletonList(event.getId()));
+            }
+        } catch (RuntimeException e) {
+            //The change is already persisted and the index will be repaired by the next synchronization
+            LOG.error(String.format("Error updating the reference index for %s %s", type, event.getId()), e);
+        }
+    }
+
+    private void synchronizeQuietly(String type) {
+        try {
+            this.doSynchronize(type);
+        } catch (RuntimeException e) {
+            LOG.error("Error synchronizing the reference index for " + type, e);
+        }
+    }
+
+    /**
+     * The path of the referenced names of the relation in the MetaData.
+     */
+    public static String path(String relation) {
+        return SCOPES.equals(relation) ? "data.metaDataFields.scopes" : String.format("data.%s.name", relation);
+    }
+
+    /**
+     * All MetaData of the type that reference the name - an entityid or a scope - in one of the relations.
+     */
+    public List<EntityReferences> referencing(String type, Collection<String> relations, String name) {
+        Query query = new Query(where("type").is(type)
+                .and("references").elemMatch(where("name").is(name).and("relation").in(relations)));
+        return mongoTemplate.find(query, EntityReferences.class);
+    }
+
+    /**
+     * All MetaData of the type that reference at least one other entity or scope.
+     */
+    public List<EntityReferences> withReferences(String type) {
+        return mongoTemplate.find(new Query(where("type").is(type).and("references.0").exists(true)),
+                EntityReferences.class);
+    }
+
+    /**
+     * The entityids of all MetaData of the type.
+     */
+    public Set<String> entityIds(String type) {
+        return new HashSet<>(mongoTemplate.findDistinct(new Query(where("type").is(type)), "entityId",
+                EntityReferences.class, String.class));
+    }
+
+    /**
+     * True after all types have been synchronized once. Before that, e.g. on the first deploy, the index can miss
+     * references and must not be used to look them up.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Synchronizes all types and waits until the index is up-to-date.
+     */
+    public void synchronizeAll() {
+        this.await(executor.submit(this::doSynchronizeAll));
+    }
+
+    /**
+     * Synchronizes the type and waits until the index of the type is up-to-date.
+     */
+    public void synchronize(String type) {
+        this.await(executor.submit(() -> this.doSynchronize(type)));
+    }
+
+    private void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error synchronizing the reference index", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while synchronizing the reference index", e);
+        }
+    }
+
+    private void doSynchronizeAll() {
+        boolean success = true;
+        for (String type : INDEXED_TYPES) {
+            try {
+                this.doSynchronize(type);
+            } catch (RuntimeException e) {
+                success = false;
+                LOG.error("Error synchronizing the reference index for " + type, e);
+            }
+        }
+        if (success) {
+            complete = true;
+        }
+    }
+
+    /**
+     * Reads the references of all MetaData of the type that is not in the index or has a different version than the
+     * index.
+     */
+    private void doSynchronize(String type) {
+        //The index is read first: MetaData inserted in between is not in the index snapshot and therefore never removed
+        Map<String, Long> indexVersions = new HashMap<>();
+        Query indexQuery = new Query(where("type").is(type));
+        indexQuery.fields().include("sourceVersion");
+        try (CloseableIterator<EntityReferences> iterator = mongoTemplate.stream(indexQuery, EntityReferences.class)) {
+            iterator.forEachRemaining(references -> indexVersions.put(references.getId(), references.getSourceVersion()));
+        }
+
+        Map<String, Long> sourceVersions = new HashMap<>();
+        Query sourceQuery = new Query();
+        sourceQuery.fields().include("version");
+        try (CloseableIterator<MetaData> iterator = mongoTemplate.stream(sourceQuery, MetaData.class, type)) {
+            iterator.forEachRemaining(metaData -> sourceVersions.put(metaData.getId(), metaData.getVersion()));
+        }
+
+        List<String> removed = indexVersions.keySet().stream()
+                .filter(id -> !sourceVersions.containsKey(id))
+                .collect(toList());
+        List<String> outdated = sourceVersions.entrySet().stream()
+                .filter(entry -> !indexVersions.containsKey(entry.getKey()) ||
+                        !Objects.equals(indexVersions.get(entry.getKey()), entry.getValue()))
+                .map(Map.Entry::getKey)
+                .collect(toList());
+        if (!removed.isEmpty() || !outdated.isEmpty()) {
+            LOG.info("Synchronizing reference index of {}: {} outdated and {} removed entities",
+                    type, outdated.size(), removed.size());
+        }
+        this.remove(removed);
+        this.refreshInBatches(type, outdated);
+    }
+
+    private void refreshInBatches(String type, List<String> ids) {
+        for (int i = 0; i < ids.size(); i += REFRESH_BATCH_SIZE) {
+            this.refresh(type, ids.subList(i, Math.min(ids.size(), i + REFRESH_BATCH_SIZE)));
+        }
+    }
+
+    private void refresh(String type, List<String> ids) {
+        Query query = new Query(where("_id").in(ids));
+        query.fields()
+                .include("version")
+                .include("data.entityid")
+                .include("data.metaDataFields.name:en")
+                .include(path(SCOPES));
+        RELATIONS.forEach(relation -> query.fields().include(path(relation)));
+
+        Set<String> found = new HashSet<>();
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, EntityReferences.class);
+        try (CloseableIterator<MetaData> iterator = mongoTemplate.stream(query, MetaData.class, type)) {
+            iterator.forEachRemaining(metaData -> {
+                EntityReferences references = this.entityReferences(type, metaData);
+                Criteria olderVersion = where("_id").is(references.getId());
+                if (metaData.getVersion() != null) {
+                    olderVersion.and("sourceVersion").not().gte(metaData.getVersion());
+                }
+                bulkOperations.replaceOne(new Query(olderVersion), references, FindAndReplaceOptions.options().upsert());
+                found.add(references.getId());
+            });
+        }
+        if (!found.isEmpty()) {
+            try {
+                bulkOperations.execute();
+            } catch (BulkOperationException e) {
+                //The upsert of references that are already indexed for a newer version fails on the unique _id
+                boolean onlyNewerVersions = e.getErrors().stream().allMatch(error -> error.getCode() == DUPLICATE_KEY);
+                if (!onlyNewerVersions) {
+                    throw e;
+                }
+            }
+        }
+        List<String> missing = new ArrayList<>(ids);
+        missing.removeAll(found);
+        this.remove(missing);
+    }
+
+    private void remove(Collection<String> ids) {
+        if (!ids.isEmpty()) {
+            mongoTemplate.remove(new Query(where("_id").in(ids)), EntityReferences.class);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private EntityReferences entityReferences(String type, MetaData metaData) {
+        Map<String, Object> data = metaData.getData();
+        Map<String, Object> metaDataFields = (Map<String, Object>) data.getOrDefault("metaDataFields", new HashMap<>());
+        List<EntityReferences.Reference> references = new ArrayList<>();
+        RELATIONS.forEach(relation -> {
+            Object entries = data.get(relation);
+            if (entries instanceof List) {
+                ((List<Object>) entries).stream()
+                        .filter(entry -> entry instanceof Map && ((Map) entry).get("name") != null)
+                        .forEach(entry -> references.add(
+                                new EntityReferences.Reference(relation, String.valueOf(((Map) entry).get("name")))));
+            }
+        });
+        Object scopes = metaDataFields.get(SCOPES);
+        if (scopes instanceof List) {
+            ((List<Object>) scopes).stream()
+                    .filter(Objects::nonNull)
+                    .forEach(scope -> references.add(new EntityReferences.Reference(SCOPES, String.valueOf(scope))));
+        }
+        return new EntityReferences(metaData.getId(), type, metaData.getVersion(), (String) data.get("entityid"),
+                (String) metaDataFields.get("name:en"), references);
+    }
+}
@@ -0,0 +1,266 @@
+package manage.repository;
+
+import manage.exception.UnsearchableRevisionFieldException;
+import manage.model.MetaData;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.stream.Collectors.toList;
+import static manage.mongo.MongoChangelog.REVISION_POSTFIX;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Stores revisions as a JSON patch on the data of the previous revision of the same parent, with a full snapshot every
+ * snapshot_interval revisions. The top-level fields and the data fields used in listings - the entityid, state, eid,
+ * notes, revisionnote and names - are always stored in full, so searches on those fields also match the deltas.
+ * Searches on any other data field would silently skip the deltas and are rejected once a collection has deltas.
+ * <p>
+ * Revisions that were stored before the delta storage was enabled, or while it was disabled, are full snapshots and
+ * can be used as the base of a delta.
+ */
+@Component
+public class RevisionStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RevisionStore.class);
+
+    static final String DELTA = "delta";
+    static final String BASE = "base";
+    static final String DEPTH = "depth";
+    static final String PATCH = "patch";
+
+    //The fields shown in - and searched by - the revision listings, e.g. the GUI "Find my data"
+    private static final List<String> DATA_HEADER = Arrays.asList("entityid", "state", "eid", "revisionnote", "notes");
+    private static final String NAME_PREFIX = "name:";
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+    private final int snapshotInterval;
+
+    //Deltas are never converted back to snapshots, so once a collection has deltas it keeps them
+    private final Set<String> collectionsWithDeltas = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public RevisionStore(MongoTemplate mongoTemplate,
+                         @Value("${revisions.delta_enabled}") boolean enabled,
+                         @Value("${revisions.snapshot_interval}") int snapshotInterval) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public boolean isRevisionType(String type) {
+        return type.endsWith(REVISION_POSTFIX);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Inserts the revision as a delta on the latest revision of the same parent, or as a full snapshot when there is
+     * no previous revision or the chain of deltas has reached the snapshot interval.
+     */
+    @SuppressWarnings("unchecked")
+    public void insert(MetaData revision) {
+        String collection = revision.getType();
+        Document document = new Document();
+        mongoTemplate.getConverter().write(revision, document);
+        if (document.get("version") == null) {
+            document.put("version", 0L);
+        }
+        Optional<Document> latest = this.latest(collection, revision.getRevision().getParentId());
+        if (latest.isPresent()) {
+            Document base = latest.get();
+            int depth = this.depth(base) + 1;
+            if (depth < snapshotInterval) {
+                try {
+                    Map<String, Object> baseData = this.reconstruct(base, collection, new HashMap<>()).get("data", Map.class);
+                    Map<String, Object> data = (Map<String, Object>) document.get("data");
+                    Document delta = new Document(BASE, base.get("_id"))
+                            .append(DEPTH, depth)
+                            .append(PATCH, JsonPatch.diff(baseData, data));
+                    document.put("data", header(data));
+                    document.put(DELTA, delta);
+                    collectionsWithDeltas.add(collection);
+                } catch (MissingBaseRevisionException e) {
+                    //Start a new chain of deltas with a snapshot
+                    LOG.error(e.getMessage());
+                }
+            }
+        }
+        mongoTemplate.insert(document, collection);
+    }
+
+    public MetaData findById(String id, String collection) {
+        Document document = mongoTemplate.findById(id, Document.class, collection);
+        return document == null ? null : this.toMetaData(document, collection, new HashMap<>());
+    }
+
+    public List<MetaData> find(Query query, String collection) {
+        List<Document> documents = mongoTemplate.find(query, Document.class, collection);
+        Map<Object, Document> reconstructed = new HashMap<>();
+        //Bases of the same parent are usually part of the result
+        documents.stream().filter(document -> !document.containsKey(DELTA))
+                .forEach(document -> reconstructed.put(document.get("_id"), document));
+        return documents.stream()
+                .map(document -> this.toMetaData(document, collection, reconstructed))
+                .collect(toList());
+    }
+
+    public MetaData toMetaData(Document document, String collection, Map<Object, Document> reconstructed) {
+        return mongoTemplate.getConverter().read(MetaData.class, this.reconstructData(document, collection, reconstructed));
+    }
+
+    /**
+     * Rejects queries on data fields that are not stored in the header of the deltas, once the collection has deltas.
+     */
+    public void checkSearchable(Query query, String collection) {
+        List<String> fields = new ArrayList<>();
+        this.fields(query.getQueryObject(), fields);
+        List<String> notSearchable = fields.stream().filter(field -> !this.isHeaderField(field)).collect(toList());
+        if (!notSearchable.isEmpty() && this.hasDeltas(collection)) {
+            throw new UnsearchableRevisionFieldException(String.format(
+                    "The revisions in %s are stored as deltas and can only be searched on the data fields %s and " +
+                            "metaDataFields.%s*, not on %s", collection, DATA_HEADER, NAME_PREFIX, notSearchable));
+        }
+    }
+
+    /**
+     * Replaces the header of a - possibly projected - delta revision with the complete data. Revisions that are
+     * stored as a snapshot are returned as is.
+     */
+    public Document reconstructData(Document document, String collection, Map<Object, Document> reconstructed) {
+        if (!document.containsKey(DELTA)) {
+            return document;
+        }
+        Document result = new Document(document);
+        result.remove(DELTA);
+        try {
+            result.put("data", this.reconstruct(document, collection, reconstructed).get("data"));
+        } catch (MissingBaseRevisionException e) {
+            //Better a revision with only the header than no listing of the revisions at all
+            LOG.error(e.getMessage() + ", returning the header of revision " + document.get("_id"));
+        }
+        return result;
+    }
+
+    private Document reconstruct(Document document, String collection, Map<Object, Document> reconstructed) {
+        //Walk back to the nearest snapshot and apply the patches forward
+        Deque<Document> chain = new ArrayDeque<>();
+        Document current = document;
+        while (current.containsKey(DELTA) && !reconstructed.containsKey(current.get("_id"))) {
+            chain.push(current);
+            Object baseId = current.get(DELTA, Document.class).get(BASE);
+            current = reconstructed.containsKey(baseId) ? reconstructed.get(baseId) :
+                    mongoTemplate.findById(baseId, Document.class, collection);
+            if (current == null) {
+                throw new MissingBaseRevisionException(String.format("Missing base revision %s in %s", baseId, collection));
+            }
+        }
+        Document result = reconstructed.getOrDefault(current.get("_id"), current);
+        while (!chain.isEmpty()) {
+            Document delta = chain.pop();
+            result = this.applyDelta(result, delta);
+            reconstructed.put(delta.get("_id"), result);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Document applyDelta(Document base, Document delta) {
+        Document result = new Document(delta);
+        result.remove(DELTA);
+        List<Map<String, Object>> patch = delta.get(DELTA, Document.class).get(PATCH, List.class);
+        result.put("data", new Document(JsonPatch.apply(base.get("data", Map.class), patch)));
+        return result;
+    }
+
+    private Optional<Document> latest(String collection, String parentId) {
+        Query query = new Query(where("revision.parentId").is(parentId))
+                .with(Sort.by(Sort.Direction.DESC, "revision.number", "revision.created"))
+                .limit(1);
+        return Optional.ofNullable(mongoTemplate.findOne(query, Document.class, collection));
+    }
+
+    private int depth(Document document) {
+        Document delta = document.get(DELTA, Document.class);
+        return delta == null ? 0 : ((Number) delta.get(DEPTH)).intValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> header(Map<String, Object> data) {
+        Document header = new Document();
+        DATA_HEADER.stream()
+                .filter(data::containsKey)
+                .forEach(key -> header.put(key, data.get(key)));
+        Object metaDataFields = data.get("metaDataFields");
+        if (metaDataFields instanceof Map) {
+            Document names = new Document();
+            ((Map<String, Object>) metaDataFields).forEach((key, value) -> {
+                if (key.startsWith(NAME_PREFIX)) {
+                    names.put(key, value);
+                }
+            });
+            header.put("metaDataFields", names);
+        }
+        return header;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void fields(Map<String, Object> query, List<String> fields) {
+        query.forEach((key, value) -> {
+            if (!key.startsWith("$")) {
+                fields.add(key);
+            } else if (value instanceof List) {
+                //$and, $or and $nor
+                ((List<?>) value).stream()
+                        .filter(condition -> condition instanceof Map)
+                        .forEach(condition -> this.fields((Map<String, Object>) condition, fields));
+            }
+        });
+    }
+
+    private boolean isHeaderField(String field) {
+        if (!field.startsWith("data.")) {
+            return true;
+        }
+        return field.startsWith("data.metaDataFields." + NAME_PREFIX) || DATA_HEADER.stream()
+                .anyMatch(key -> field.equals("data." + key) || field.startsWith("data." + key + "."));
+    }
+
+    private boolean hasDeltas(String collection) {
+        if (collectionsWithDeltas.contains(collection)) {
+            return true;
+        }
+        boolean hasDeltas = mongoTemplate.exists(new Query(where(DELTA).exists(true)), collection);
+        if (hasDeltas) {
+            collectionsWithDeltas.add(collection);
+        }
+        return hasDeltas;
+    }
+
+    private static class MissingBaseRevisionException extends RuntimeException {
+
+        private MissingBaseRevisionException(String message) {
+            super(message);
+        }
+    }
+}
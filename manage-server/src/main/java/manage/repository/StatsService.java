@@ -0,0 +1,140 @@
+package manage.repository;
+
+import manage.conf.MetaDataAutoConfiguration;
+import manage.model.StatsEntry;
+import manage.model.TypeStats;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Statistics of the collections and the MetaData types. The statistics are computed in the background from the
+ * estimated document counts, the collection storage stats and one aggregation per type, and served from memory.
+ */
+@Component
+public class StatsService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatsService.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final MetaDataAutoConfiguration metaDataAutoConfiguration;
+    private final long refreshMinutes;
+
+    private volatile List<StatsEntry> collectionStats;
+    private volatile List<TypeStats> typeStats;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stats");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public StatsService(MongoTemplate mongoTemplate,
+                        MetaDataAutoConfiguration metaDataAutoConfiguration,
+                        @Value("${stats.refresh_minutes}") long refreshMinutes) {
+        this.mongoTemplate = mongoTemplate;
+        this.metaDataAutoConfiguration = metaDataAutoConfiguration;
+        this.refreshMinutes = refreshMinutes;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        executor.scheduleWithFixedDelay(this::refreshQuietly, 0, Math.max(1L, refreshMinutes), TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public List<StatsEntry> collectionStats() {
+        if (collectionStats == null) {
+            this.refresh();
+        }
+        return collectionStats;
+    }
+
+    public List<TypeStats> typeStats() {
+        if (typeStats == null) {
+            this.refresh();
+        }
+        return typeStats;
+    }
+
+    public synchronized void refresh() {
+        long start = System.currentTimeMillis();
+        collectionStats = mongoTemplate.getCollectionNames().stream()
+                .sorted()
+                .map(name -> new StatsEntry(name, mongoTemplate.getCollection(name).estimatedDocumentCount(),
+                        this.storageSize(name)))
+                .collect(toList());
+        typeStats = metaDataAutoConfiguration.schemaNames().stream()
+                .sorted()
+                .filter(mongoTemplate::collectionExists)
+                .map(this::typeStats)
+                .collect(toList());
+        LOG.debug("Refreshed the stats in {} ms", System.currentTimeMillis() - start);
+    }
+
+    private void refreshQuietly() {
+        try {
+            this.refresh();
+        } catch (RuntimeException e) {
+            LOG.error("Error refreshing the stats", e);
+        }
+    }
+
+    private Long storageSize(String collection) {
+        try {
+            Document collStats = mongoTemplate.getDb().runCommand(new Document("collStats", collection));
+            Object storageSize = collStats.get("storageSize");
+            return storageSize instanceof Number ? ((Number) storageSize).longValue() : null;
+        } catch (RuntimeException e) {
+            //Views and collections without the collStats privilege have no storage stats
+            return null;
+        }
+    }
+
+    /**
+     * The counts per state and the number of eduGAIN imports in one pass over the collection.
+     */
+    @SuppressWarnings("unchecked")
+    private TypeStats typeStats(String type) {
+        Document facet = new Document("$facet", new Document()
+                .append("states", singletonList(new Document("$group",
+                        new Document("_id", "$data.state").append("count", new Document("$sum", 1L)))))
+                .append("importedFromEdugain", Arrays.asList(
+                        new Document("$match", new Document("data.metaDataFields.coin:imported_from_edugain", true)),
+                        new Document("$count", "count"))));
+        Document result = mongoTemplate.getCollection(type).aggregate(singletonList(facet)).first();
+
+        Map<String, Long> states = new TreeMap<>();
+        List<Document> stateCounts = result != null ? (List<Document>) result.get("states") : new ArrayList<>();
+        stateCounts.forEach(stateCount -> states.put(String.valueOf(stateCount.get("_id")),
+                ((Number) stateCount.get("count")).longValue()));
+        List<Document> importedCounts = result != null ? (List<Document>) result.get("importedFromEdugain") : new ArrayList<>();
+        long importedFromEdugain = importedCounts.isEmpty() ? 0L : ((Number) importedCounts.get(0).get("count")).longValue();
+        long total = states.values().stream().mapToLong(Long::longValue).sum();
+        return new TypeStats(type, total, states, importedFromEdugain);
+    }
+}
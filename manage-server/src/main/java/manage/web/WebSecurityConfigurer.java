@@ -34,6 +34,7 @@ import org.springframework.web.method.support.HandlerMethodArgumentResolver;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.yaml.snakeyaml.Yaml;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Stream;
@@ -45,7 +46,7 @@ import static java.util.stream.Collectors.toList;
  * <p>
  * Protect the internal endpoints for other Server applications with basic authentications.
  * <p>
- * Do not protect public endpoints like /health and /info
+ * Do not protect public endpoints like /health and /info, the other actuator endpoints require the SYSTEM scope
  */
 @Configuration
 @EnableWebSecurity
@@ -171,14 +172,12 @@ public class WebSecurityConfigurer {
 
         @Override
         public void configure(WebSecurity web) throws Exception {
-            web.ignoring().antMatchers("/actuator/**");
+            web.ignoring().antMatchers("/actuator/health", "/actuator/info");
         }
 
         @Override
         public void configure(HttpSecurity http) throws Exception {
-            APIUserConfiguration apiUserConfiguration = new Yaml()
-                    .loadAs(resourceLoader.getResource(configApiUsersFileLocation).getInputStream(), APIUserConfiguration
-                            .class);
+            APIUserConfiguration apiUserConfiguration = apiUserConfiguration(resourceLoader, configApiUsersFileLocation);
             http
                     .antMatcher("/internal/**")
                     .sessionManagement()
@@ -197,6 +196,48 @@ public class WebSecurityConfigurer {
 
     }
 
+    /**
+     * The actuator endpoints other than health and info - e.g. the index audit - are expensive or reveal internals
+     */
+    @Order(2)
+    @Configuration
+    public static class ActuatorSecurityConfigurationAdapter extends WebSecurityConfigurerAdapter {
+
+        @Value("${security.api_users_config_path}")
+        private String configApiUsersFileLocation;
+
+        @Autowired
+        private ResourceLoader resourceLoader;
+
+        @Override
+        public void configure(HttpSecurity http) throws Exception {
+            APIUserConfiguration apiUserConfiguration = apiUserConfiguration(resourceLoader, configApiUsersFileLocation);
+            BasicAuthenticationEntryPoint authenticationEntryPoint = new BasicAuthenticationEntryPoint();
+            authenticationEntryPoint.setRealmName("manage");
+            http
+                    .antMatcher("/actuator/**")
+                    .sessionManagement()
+                    .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+                    .and()
+                    .csrf()
+                    .disable()
+                    .exceptionHandling().authenticationEntryPoint(authenticationEntryPoint)
+                    .and()
+                    .addFilterBefore(
+                            new BasicAuthenticationFilter(
+                                    new APIAuthenticationManager(apiUserConfiguration)
+                            ), BasicAuthenticationFilter.class
+                    )
+                    .authorizeRequests()
+                    .antMatchers("/actuator/**").hasRole("SYSTEM");
+        }
+    }
+
+    private static APIUserConfiguration apiUserConfiguration(ResourceLoader resourceLoader, String location)
+            throws IOException {
+        return new Yaml().loadAs(resourceLoader.getResource(location).getInputStream(), APIUserConfiguration.class);
+    }
+
     @Configuration
     public class MvcConfig implements WebMvcConfigurer {
 
@@ -4,8 +4,11 @@ import org.junit.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import static io.restassured.RestAssured.given;
+import static org.apache.http.HttpStatus.SC_FORBIDDEN;
 import static org.apache.http.HttpStatus.SC_OK;
+import static org.apache.http.HttpStatus.SC_UNAUTHORIZED;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
         properties = {"spring.profiles.active=dev", "spring.data.mongodb.uri=mongodb://localhost:27017/metadata_test"})
@@ -21,4 +24,63 @@ public class ApplicationTest extends AbstractIntegrationTest {
                 .body("status", equalTo("UP"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void indexes() {
+        given()
+                .auth()
+                .preemptive()
+                .basic("sysadmin", "secret")
+                .when()
+                .get("manage/api/actuator/indexes")
+                .then()
+                .statusCode(SC_OK)
+                .body("collection", hasItems("saml20_sp", "saml20_sp_revision"))
+                .body("fields.flatten()", hasItems("data.entityid", "data.metaDataFields.coin:institution_id"));
+    }
+
+    @Test
+    public void indexesRequireSystemScope() {
+        given()
+                .when()
+                .get("manage/api/actuator/indexes")
+                .then()
+                .statusCode(SC_UNAUTHORIZED);
+        given()
+                .auth()
+                .preemptive()
+                .basic("dashboard", "secret")
+                .when()
+                .get("manage/api/actuator/indexes")
+                .then()
+                .statusCode(SC_FORBIDDEN);
+    }
+
+    @Test
+    public void hooks() {
+        given()
+                .when()
+                .get("manage/api/client/metadata/saml20_sp/1")
+                .then()
+                .statusCode(SC_OK);
+        given()
+                .auth()
+                .preemptive()
+                .basic("sysadmin", "secret")
+                .when()
+                .get("manage/api/actuator/hooks")
+                .then()
+                .statusCode(SC_OK)
+                .body("findAll { it.callback == 'postGet' && it.type == 'saml20_sp' }.hook",
+                        hasItems("TypeSafetyHook", "EntityIdConstraintsHook"));
+    }
+
+    @Test
+    public void hooksRequireSystemScope() {
+        given()
+                .when()
+                .get("manage/api/actuator/hooks")
+                .then()
+                .statusCode(SC_UNAUTHORIZED);
+    }
+
+}
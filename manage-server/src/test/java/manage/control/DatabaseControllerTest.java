@@ -1,14 +1,19 @@
 package manage.control;
 
 import manage.AbstractIntegrationTest;
+import manage.model.EntityType;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 
 import java.util.Map;
 
 import static io.restassured.RestAssured.given;
+import static org.apache.http.HttpStatus.SC_NOT_MODIFIED;
 import static org.apache.http.HttpStatus.SC_OK;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 public class DatabaseControllerTest extends AbstractIntegrationTest {
 
@@ -32,4 +37,47 @@ public class DatabaseControllerTest extends AbstractIntegrationTest {
         assertEquals(expected, connections);
     }
 
+    @Test
+    public void pushPreviewAfterRemovalOutsideRepository() {
+        mongoTemplate().remove(new Query(Criteria.where("_id").is("1")), EntityType.SP.getType());
+
+        Map connections = given()
+                .when()
+                .get("manage/api/client/playground/pushPreview")
+                .then()
+                .statusCode(SC_OK)
+                .extract().as(Map.class);
+
+        Map pushed = (Map) connections.get("connections");
+        assertEquals(8, pushed.size());
+        assertFalse(pushed.containsKey("1"));
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        String eTag = given()
+                .when()
+                .get("manage/api/client/playground/snapshot")
+                .then()
+                .statusCode(SC_OK)
+                .extract().header("ETag");
+
+        given()
+                .header("If-None-Match", eTag)
+                .when()
+                .get("manage/api/client/playground/snapshot")
+                .then()
+                .statusCode(SC_NOT_MODIFIED);
+
+        Map connections = given()
+                .header("If-None-Match", "\"nope\"")
+                .when()
+                .get("manage/api/client/playground/snapshot")
+                .then()
+                .statusCode(SC_OK)
+                .extract().as(Map.class);
+        Map expected = objectMapper.readValue(readFile("push/push.expected_connections.json"), Map.class);
+        assertEquals(expected, connections);
+    }
+
 }
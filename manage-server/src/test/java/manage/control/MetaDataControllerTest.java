@@ -2,6 +2,8 @@ package manage.control;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import io.restassured.http.ContentType;
+import io.restassured.response.ExtractableResponse;
+import io.restassured.response.Response;
 import io.restassured.response.ValidatableResponse;
 import io.restassured.specification.RequestSpecification;
 import manage.AbstractIntegrationTest;
@@ -13,7 +15,9 @@ import manage.model.MetaDataUpdate;
 import manage.model.Revision;
 import manage.model.RevisionRestore;
 import manage.oidc.OidcClient;
+import manage.repository.StatsService;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ClassPathResource;
 
 import java.io.IOException;
@@ -23,9 +27,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.regex.Pattern;
 
 import static io.restassured.RestAssured.given;
@@ -55,6 +61,9 @@ import static org.junit.Assert.assertTrue;
 @SuppressWarnings("unchecked")
 public class MetaDataControllerTest extends AbstractIntegrationTest {
 
+    @Autowired
+    private StatsService statsService;
+
     @Test
     public void get() {
         given()
@@ -374,6 +383,88 @@ public class MetaDataControllerTest extends AbstractIntegrationTest {
                 .body("[0].data.entityid", equalTo("Duis ad do"));
     }
 
+    @Test
+    public void revisionSummaries() {
+        for (int i = 0; i < 2; i++) {
+            MetaData previous = metaDataRepository.findById("1", EntityType.SP.getType());
+            previous.revision(UUID.randomUUID().toString());
+            metaDataRepository.save(previous);
+
+            MetaData current = metaDataRepository.findById("1", EntityType.SP.getType());
+            current.promoteToLatest("test", "Revision " + i);
+            metaDataRepository.update(current);
+        }
+        String continuationToken = given()
+                .when()
+                .queryParam("pageSize", 1)
+                .queryParam("total", true)
+                .get("manage/api/client/revisions/saml20_sp/1/summary")
+                .then()
+                .statusCode(SC_OK)
+                .body("total", is(2))
+                .body("results.size()", is(1))
+                .body("results[0].number", is(1))
+                .body("results[0].updatedBy", is("test"))
+                .body("results[0].revisionnote", is("Revision 0"))
+                .extract().path("continuationToken");
+
+        String id = given()
+                .when()
+                .queryParam("pageSize", 1)
+                .queryParam("continuationToken", continuationToken)
+                .get("manage/api/client/revisions/saml20_sp/1/summary")
+                .then()
+                .statusCode(SC_OK)
+                .body("results.size()", is(1))
+                .body("results[0].number", is(0))
+                .body("continuationToken", emptyOrNullString())
+                .extract().path("results[0].id");
+
+        given()
+                .when()
+                .get("manage/api/client/revision/saml20_sp/" + id)
+                .then()
+                .statusCode(SC_OK)
+                .body("revision.parentId", is("1"))
+                .body("data.entityid", is("Duis ad do"));
+    }
+
+    @Test
+    public void revisionSummariesWithEqualNumbers() {
+        for (int i = 0; i < 3; i++) {
+            MetaData previous = metaDataRepository.findById("1", EntityType.SP.getType());
+            previous.revision(UUID.randomUUID().toString());
+            metaDataRepository.save(previous);
+        }
+        Set<String> ids = new HashSet<>();
+        String continuationToken = null;
+        do {
+            RequestSpecification request = given().queryParam("pageSize", 2);
+            if (continuationToken != null) {
+                request.queryParam("continuationToken", continuationToken);
+            }
+            ExtractableResponse<Response> response = request
+                    .when()
+                    .get("manage/api/client/revisions/saml20_sp/1/summary")
+                    .then()
+                    .statusCode(SC_OK)
+                    .extract();
+            List<String> pageIds = response.path("results.id");
+            ids.addAll(pageIds);
+            continuationToken = response.path("continuationToken");
+        } while (continuationToken != null);
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void revisionNotFound() {
+        given()
+                .when()
+                .get("manage/api/client/revision/saml20_sp/nope")
+                .then()
+                .statusCode(SC_NOT_FOUND);
+    }
+
     @Test
     public void autoComplete() {
         given()
@@ -441,6 +532,116 @@ public class MetaDataControllerTest extends AbstractIntegrationTest {
     }
 
 
+    @Test
+    public void textSearch() {
+        given()
+                .when()
+                .queryParam("query", "Mujina")
+                .get("manage/api/client/search/saml20_sp/text")
+                .then()
+                .statusCode(SC_OK)
+                .body("data.entityid", hasItems("http://mock-sp"));
+    }
+
+    @Test
+    public void typeStats() {
+        statsService.refresh();
+        given()
+                .when()
+                .get("manage/api/client/metadata/stats/types")
+                .then()
+                .statusCode(SC_OK)
+                .body("find { it.type == 'saml20_sp' }.total", is(7))
+                .body("find { it.type == 'saml20_idp' }.total", is(2));
+        given()
+                .when()
+                .get("manage/api/client/metadata/stats")
+                .then()
+                .statusCode(SC_OK)
+                .body("name", hasItems("saml20_sp", "saml20_idp"));
+    }
+
+    @Test
+    public void searchPage() {
+        Map<String, Object> searchOptions = new HashMap<>();
+        searchOptions.put(REQUESTED_ATTRIBUTES, Collections.singletonList("metaDataFields.name:en"));
+
+        String continuationToken = given()
+                .when()
+                .body(searchOptions)
+                .header("Content-type", "application/json")
+                .queryParam("pageSize", 4)
+                .queryParam("total", true)
+                .post("manage/api/client/search/saml20_sp/page")
+                .then()
+                .statusCode(SC_OK)
+                .body("results.size()", is(4))
+                .body("results.'_id'", hasItems("1", "11", "2", "3"))
+                .body("total", is(7))
+                .extract().path("continuationToken");
+        assertNotNull(continuationToken);
+
+        given()
+                .when()
+                .body(searchOptions)
+                .header("Content-type", "application/json")
+                .queryParam("pageSize", 4)
+                .queryParam("continuationToken", continuationToken)
+                .post("manage/api/client/search/saml20_sp/page")
+                .then()
+                .statusCode(SC_OK)
+                .body("results.size()", is(3))
+                .body("results.'_id'", hasItems("4", "5", "8"))
+                .body("continuationToken", emptyOrNullString())
+                .body("total", emptyOrNullString());
+    }
+
+    @Test
+    public void searchStream() {
+        Map<String, Object> searchOptions = new HashMap<>();
+        searchOptions.put(ALL_ATTRIBUTES, true);
+
+        String body = given()
+                .when()
+                .body(searchOptions)
+                .header("Content-type", "application/json")
+                .post("manage/api/client/search/saml20_sp/stream")
+                .then()
+                .statusCode(SC_OK)
+                .header("Content-Encoding", "gzip")
+                .extract().asString();
+        String[] lines = body.split("\n");
+        assertEquals(7, lines.length);
+        assertTrue(Arrays.stream(lines).anyMatch(line -> line.contains("\"http://mock-sp\"")));
+    }
+
+    @Test
+    public void rawSearchStream() {
+        String body = given()
+                .when()
+                .header("Accept-Encoding", "identity")
+                .queryParam("query", "{\"data.entityid\":\"http://mock-sp\"}")
+                .get("manage/api/client/rawSearch/saml20_sp/stream")
+                .then()
+                .statusCode(SC_OK)
+                .extract().asString();
+        String[] lines = body.split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].contains("\"OpenConext Mujina SP\""));
+    }
+
+    @Test
+    public void searchPageInvalidContinuationToken() {
+        given()
+                .when()
+                .body(new HashMap<>())
+                .header("Content-type", "application/json")
+                .queryParam("continuationToken", "not base64!")
+                .post("manage/api/client/search/saml20_sp/page")
+                .then()
+                .statusCode(SC_BAD_REQUEST);
+    }
+
     @Test
     public void search() {
         Map<String, Object> searchOptions = new HashMap<>();
@@ -791,6 +992,12 @@ public class MetaDataControllerTest extends AbstractIntegrationTest {
         idp = metaDataRepository.findById("6", "saml20_idp");
         assertEquals(2, List.class.cast(idp.getData().get("allowedEntities")).size());
         assertEquals(1, List.class.cast(idp.getData().get("disableConsent")).size());
+        assertEquals("Updated after deletion of entityId http://mock-sp", idp.getData().get("revisionnote"));
+
+        //Both relations are updated in a single revision
+        List<MetaData> revisions = metaDataRepository.revisions("saml20_idp_revision", "6");
+        assertEquals(1, revisions.size());
+        assertEquals(3, List.class.cast(revisions.get(0).getData().get("allowedEntities")).size());
 
     }
 
@@ -1,12 +1,20 @@
 package manage.control;
 
 import manage.AbstractIntegrationTest;
+import manage.model.EntityType;
+import manage.model.MetaData;
+import manage.push.PushJob;
+import manage.push.PushScheduler;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
 import java.util.List;
 
 import static io.restassured.RestAssured.given;
+import static manage.mongo.MongoChangelog.REVISION_POSTFIX;
+import static org.apache.http.HttpStatus.SC_FORBIDDEN;
+import static org.apache.http.HttpStatus.SC_NOT_FOUND;
 import static org.apache.http.HttpStatus.SC_OK;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
@@ -14,6 +22,9 @@ import static org.junit.Assert.assertEquals;
 @SuppressWarnings("unchecked")
 public class SystemControllerTest extends AbstractIntegrationTest {
 
+    @Autowired
+    private PushScheduler pushScheduler;
+
     @Value("${push.eb.user}")
     private String pushUser;
 
@@ -49,6 +60,12 @@ public class SystemControllerTest extends AbstractIntegrationTest {
                 .then()
                 .statusCode(SC_OK);
 
+        //The three orphans of the IdP are removed in one update
+        List<MetaData> revisions = metaDataRepository.revisions(EntityType.IDP.getType().concat(REVISION_POSTFIX), "6");
+        assertEquals(1, revisions.size());
+        assertEquals("Removed reference to non-existent entityID",
+                metaDataRepository.findById("6", EntityType.IDP.getType()).getData().get("revisionnote"));
+
         given()
                 .when()
                 .get("manage/api/client/playground/orphans")
@@ -56,4 +73,37 @@ public class SystemControllerTest extends AbstractIntegrationTest {
                 .statusCode(SC_OK)
                 .body("size()", is(0));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void pushJob() {
+        //Push jobs are also handed out to the WRITE endpoints used by the dashboard
+        PushJob pushJob = pushScheduler.schedule("dashboard");
+        given()
+                .auth()
+                .preemptive()
+                .basic("dashboard", "secret")
+                .when()
+                .get("manage/api/internal/push/" + pushJob.getId())
+                .then()
+                .statusCode(SC_OK)
+                .body("id", is(pushJob.getId()));
+
+        given()
+                .auth()
+                .preemptive()
+                .basic("pdp", "secret")
+                .when()
+                .get("manage/api/internal/push/" + pushJob.getId())
+                .then()
+                .statusCode(SC_FORBIDDEN);
+
+        given()
+                .auth()
+                .preemptive()
+                .basic("sp-portal", "secret")
+                .when()
+                .get("manage/api/internal/push/nope")
+                .then()
+                .statusCode(SC_NOT_FOUND);
+    }
+}
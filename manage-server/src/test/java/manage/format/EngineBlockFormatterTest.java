@@ -66,6 +66,30 @@ public class EngineBlockFormatterTest implements TestUtils {
         assertEquals(Stream.of("allow_all_entities", "metadata", "allowed_connections", "arp_attributes", "type").collect(Collectors.toSet()), rp.keySet());
     }
 
+    @Test
+    public void projectedFields() throws Exception {
+        MetaData metaData = objectMapper.readValue(readFile("json/meta_data_detail.json"), MetaData.class);
+        Map<String, Object> metaDataFields = metaData.metaDataFields();
+        Map<String, Object> projectedMetaDataFields = new HashMap<>();
+        Map<String, Object> projectedData = new HashMap<>();
+        projectedData.put("metaDataFields", projectedMetaDataFields);
+
+        EngineBlockFormatter.projectedFields().forEach(field -> {
+            String path = field.substring("data.".length());
+            if (path.startsWith("metaDataFields.")) {
+                String key = path.substring("metaDataFields.".length()).replace("@", ".");
+                if (metaDataFields.containsKey(key)) {
+                    projectedMetaDataFields.put(key, metaDataFields.get(key));
+                }
+            } else if (metaData.getData().containsKey(path)) {
+                projectedData.put(path, metaData.getData().get(path));
+            }
+        });
+        Map<String, Object> expected = subject.parseServiceProvider(metaData);
+        Map<String, Object> result = subject.parseServiceProvider(new MetaData(metaData.getType(), projectedData));
+        assertEquals(new HashMap<>(expected).toString(), new HashMap<>(result).toString());
+    }
+
     private void assertAttribute(String path, String value, Map<String, Object> result) {
         String[] split = path.split(":");
         if (split.length == 1) {
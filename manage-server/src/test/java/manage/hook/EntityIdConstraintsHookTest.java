@@ -0,0 +1,63 @@
+package manage.hook;
+
+import manage.model.EntityType;
+import manage.model.MetaData;
+import manage.repository.MetaDataRepository;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.singletonMap;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+public class EntityIdConstraintsHookTest {
+
+    private MetaDataRepository metaDataRepository = mock(MetaDataRepository.class);
+
+    private EntityIdConstraintsHook subject = new EntityIdConstraintsHook(metaDataRepository);
+
+    @Test
+    public void prePut() {
+        when(metaDataRepository.existingEntityIds(eq(EntityType.SP.getType()), any(Collection.class)))
+                .thenReturn(new HashSet<>(Arrays.asList("https://sp1", "https://sp2")));
+        when(metaDataRepository.existingEntityIds(eq(EntityType.RP.getType()), any(Collection.class)))
+                .thenReturn(new HashSet<>(Arrays.asList("https://rp1")));
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("allowedEntities", references("https://sp1", "https://sp2", "https://rp1", "https://deleted"));
+        data.put("disableConsent", references("https://sp2", "https://deleted"));
+        data.put("stepupEntities", references("https://rp1"));
+        MetaData metaData = subject.prePut(null, new MetaData(EntityType.IDP.getType(), data));
+
+        assertEquals(Arrays.asList("https://sp1", "https://sp2", "https://rp1"), names(metaData, "allowedEntities"));
+        assertEquals(Arrays.asList("https://sp2"), names(metaData, "disableConsent"));
+        assertEquals(Arrays.asList("https://rp1"), names(metaData, "stepupEntities"));
+
+        //One query per type, regardless of the number of references
+        verify(metaDataRepository, times(1)).existingEntityIds(eq(EntityType.SP.getType()), any(Collection.class));
+        verify(metaDataRepository, times(1)).existingEntityIds(eq(EntityType.RP.getType()), any(Collection.class));
+    }
+
+    private List<Map<String, String>> references(String... names) {
+        return Arrays.stream(names).map(name -> singletonMap("name", name)).collect(toList());
+    }
+
+    private List<String> names(MetaData metaData, String key) {
+        return ((List<Map<String, String>>) metaData.getData().get(key)).stream()
+                .map(map -> map.get("name"))
+                .collect(toList());
+    }
+}
@@ -0,0 +1,55 @@
+package manage.push;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkedPushTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void chunks() throws Exception {
+        List<byte[]> sent = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ChunkedPush chunkedPush = new ChunkedPush(objectMapper.getFactory(), 2, executor, sent::add, new PushTimings());
+
+        for (int i = 0; i < 5; i++) {
+            chunkedPush.add(String.valueOf(i), String.format("{\"name\":\"https://sp%s\"}", i));
+        }
+        chunkedPush.finish();
+        executor.shutdown();
+
+        assertEquals(3, chunkedPush.getChunks());
+        assertEquals(3, sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            Map chunk = objectMapper.readValue(sent.get(i), Map.class);
+            assertEquals(chunkedPush.getPushId(), chunk.get("pushId"));
+            assertEquals(i, chunk.get("chunk"));
+            assertEquals(i < 2 ? 2 : 1, ((Map) chunk.get("connections")).size());
+        }
+        Map last = objectMapper.readValue(sent.get(2), Map.class);
+        assertEquals("https://sp4", ((Map) ((Map) last.get("connections")).get("4")).get("name"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failedChunk() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ChunkedPush chunkedPush = new ChunkedPush(objectMapper.getFactory(), 1, executor, chunk -> {
+            throw new IllegalStateException("nope");
+        }, new PushTimings());
+        try {
+            chunkedPush.add("1", "{}");
+            chunkedPush.finish();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
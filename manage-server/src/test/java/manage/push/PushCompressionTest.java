@@ -0,0 +1,54 @@
+package manage.push;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PushCompressionTest {
+
+    private final String json = "{\"connections\":{\"1\":{\"name\":\"https://sp\"},\"2\":{\"name\":\"https://sp\"}}}";
+
+    @Test
+    public void gzip() throws Exception {
+        byte[] compressed = compress(PushCompression.GZIP);
+        String result = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8);
+        assertEquals(json, result);
+        assertEquals("gzip", PushCompression.GZIP.contentEncoding().get());
+    }
+
+    @Test
+    public void deflate() throws Exception {
+        byte[] compressed = compress(PushCompression.DEFLATE);
+        String result = IOUtils.toString(new InflaterInputStream(new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8);
+        assertEquals(json, result);
+        assertEquals("deflate", PushCompression.DEFLATE.contentEncoding().get());
+    }
+
+    @Test
+    public void none() throws Exception {
+        assertEquals(json, new String(compress(PushCompression.NONE), StandardCharsets.UTF_8));
+        assertFalse(PushCompression.NONE.contentEncoding().isPresent());
+    }
+
+    @Test
+    public void fromConfiguration() {
+        assertEquals(PushCompression.GZIP, PushCompression.fromConfiguration(" gzip "));
+    }
+
+    private byte[] compress(PushCompression compression) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream outputStream = compression.compress(bos);
+        outputStream.write(json.getBytes(StandardCharsets.UTF_8));
+        outputStream.close();
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,55 @@
+package manage.push;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PushDeltaTest {
+
+    @Test
+    public void fingerprintIsIndependentOfKeyOrder() {
+        Map<String, Object> connection = new HashMap<>();
+        connection.put("name", "https://sp");
+        connection.put("state", "prodaccepted");
+        Map<String, Object> sorted = new TreeMap<>(connection);
+
+        assertEquals(PushDelta.fingerprint(connection), PushDelta.fingerprint(sorted));
+    }
+
+    @Test
+    public void delta() {
+        Map<String, Object> unchanged = singletonMap("name", "https://unchanged");
+
+        Map<String, String> previousFingerprints = new HashMap<>();
+        previousFingerprints.put("1", PushDelta.fingerprint(unchanged));
+        previousFingerprints.put("2", PushDelta.fingerprint(singletonMap("name", "https://before")));
+        previousFingerprints.put("3", PushDelta.fingerprint(singletonMap("name", "https://removed")));
+
+        PushDelta pushDelta = new PushDelta(previousFingerprints);
+
+        assertFalse(pushDelta.register("1", unchanged));
+        assertTrue(pushDelta.register("2", singletonMap("name", "https://changed")));
+        assertTrue(pushDelta.register("4", singletonMap("name", "https://added")));
+
+        assertEquals(singletonList("3"), pushDelta.getRemoved());
+        assertEquals(2, pushDelta.changedFingerprints().size());
+        assertEquals(Integer.valueOf(2), pushDelta.summary().get("changed"));
+    }
+
+    @Test
+    public void noDelta() {
+        Map<String, Object> connection = singletonMap("name", "https://unchanged");
+        PushDelta pushDelta = new PushDelta(singletonMap("1", PushDelta.fingerprint(connection)));
+        pushDelta.register("1", connection);
+
+        assertTrue(pushDelta.isEmpty());
+    }
+}
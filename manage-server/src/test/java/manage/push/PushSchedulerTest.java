@@ -0,0 +1,70 @@
+package manage.push;
+
+import manage.control.DatabaseController;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PushSchedulerTest {
+
+    @Test
+    public void coalesce() {
+        DatabaseController databaseController = mock(DatabaseController.class);
+        when(databaseController.doPush())
+                .thenReturn(new ResponseEntity<Map>(Collections.singletonMap("status", 200), HttpStatus.OK));
+        PushScheduler pushScheduler = new PushScheduler(databaseController, 250L);
+
+        PushJob first = pushScheduler.schedule("first");
+        PushJob second = pushScheduler.schedule("second");
+
+        assertEquals(first.getId(), second.getId());
+        assertEquals(Arrays.asList("first", "second"), first.getRequestedBy());
+
+        await().until(() -> pushScheduler.job(first.getId()).get().getStatus() == PushJob.Status.DONE);
+        verify(databaseController, times(1)).doPush();
+
+        PushJob third = pushScheduler.schedule("third");
+        assertFalse(first.getId().equals(third.getId()));
+
+        await().until(() -> third.getStatus() == PushJob.Status.DONE);
+        verify(databaseController, times(2)).doPush();
+    }
+
+    @Test
+    public void failed() {
+        DatabaseController databaseController = mock(DatabaseController.class);
+        when(databaseController.doPush()).thenThrow(new IllegalArgumentException("nope"));
+        PushScheduler pushScheduler = new PushScheduler(databaseController, 0L);
+
+        PushJob pushJob = pushScheduler.schedule("test");
+
+        await().until(() -> pushJob.getStatus() == PushJob.Status.FAILED);
+        assertEquals("java.lang.IllegalArgumentException: nope", pushJob.getError());
+    }
+
+    @Test
+    public void failedTarget() {
+        DatabaseController databaseController = mock(DatabaseController.class);
+        when(databaseController.doPush()).thenReturn(new ResponseEntity<Map>(
+                Collections.singletonMap("status", HttpStatus.INTERNAL_SERVER_ERROR), HttpStatus.INTERNAL_SERVER_ERROR));
+        PushScheduler pushScheduler = new PushScheduler(databaseController, 0L);
+
+        PushJob pushJob = pushScheduler.schedule("test");
+
+        await().until(() -> pushJob.getStatus() == PushJob.Status.FAILED);
+        assertEquals("Push failed with status 500 INTERNAL_SERVER_ERROR", pushJob.getError());
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, pushJob.getResult().get("status"));
+    }
+}
@@ -0,0 +1,95 @@
+package manage.push;
+
+import manage.model.MetaData;
+import manage.model.PushConnection;
+import manage.repository.MetaDataRepository;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PushViewTest {
+
+    private static final String TYPE = "saml20_sp";
+
+    @Test
+    public void synchronizeFormatsInParallel() {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        MetaDataRepository metaDataRepository = mock(MetaDataRepository.class);
+        when(metaDataRepository.getMongoTemplate()).thenReturn(mongoTemplate);
+        BulkOperations bulkOperations = mock(BulkOperations.class);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(PushConnection.class)))
+                .thenReturn(bulkOperations);
+
+        List<MetaData> metaDataList = IntStream.range(0, 8)
+                .mapToObj(i -> new MetaData(String.valueOf(i), 1L, TYPE, null, null))
+                .collect(toList());
+        when(mongoTemplate.stream(any(Query.class), eq(MetaData.class), eq(TYPE)))
+                .thenAnswer(invocation -> iterator(metaDataList));
+        when(mongoTemplate.stream(any(Query.class), eq(PushConnection.class)))
+                .thenAnswer(invocation -> iterator(Collections.emptyList()));
+
+        PushView pushView = spy(new PushView(metaDataRepository, true, 4));
+        //Every connection waits until at least one other connection is formatted at the same time
+        CountDownLatch concurrent = new CountDownLatch(2);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            MetaData metaData = invocation.getArgument(1);
+            threads.add(Thread.currentThread().getName());
+            concurrent.countDown();
+            assertTrue(concurrent.await(5, TimeUnit.SECONDS));
+            return new PushConnection(metaData.getId(), TYPE, metaData.getVersion(), "{}", "fingerprint",
+                    false, false, false);
+        }).when(pushView).connection(anyString(), any(MetaData.class));
+
+        pushView.synchronize(TYPE);
+
+        verify(pushView, times(8)).connection(anyString(), any(MetaData.class));
+        verify(bulkOperations, times(8)).replaceOne(any(Query.class), any(PushConnection.class), any());
+        verify(bulkOperations).execute();
+        assertTrue(threads.size() > 1);
+        pushView.shutdown();
+    }
+
+    private <T> CloseableIterator<T> iterator(List<T> list) {
+        Iterator<T> iterator = new ArrayList<>(list).iterator();
+        return new CloseableIterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+package manage.repository;
+
+import manage.conf.MetaDataAutoConfiguration;
+import manage.mongo.Sequence;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AutoCompleteIndexTest {
+
+    private static final String TYPE = "saml20_sp";
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final List<Map> documents = new ArrayList<>();
+
+    private AutoCompleteIndex subject;
+
+    @Before
+    public void before() {
+        MetaDataAutoConfiguration metaDataAutoConfiguration = mock(MetaDataAutoConfiguration.class);
+        when(metaDataAutoConfiguration.schemaNames()).thenReturn(Collections.singleton(TYPE));
+        when(mongoTemplate.stream(any(Query.class), eq(Map.class), eq(TYPE)))
+                .thenAnswer(invocation -> iterator(new ArrayList<>(documents)));
+
+        documents.add(document("1", "https://mock-sp", "Mock SP", null));
+        documents.add(document("2", "https://other-sp", "Other SP", "mock"));
+        documents.add(document("3", "https://third-sp", "Third", null));
+
+        subject = new AutoCompleteIndex(mongoTemplate, metaDataAutoConfiguration, "en,nl", 60, 30);
+        subject.rebuild();
+    }
+
+    @Test
+    public void search() {
+        assertEquals(Arrays.asList("1", "2"), search("mock"));
+        assertEquals(Arrays.asList("1", "2", "3"), search("SP"));
+        assertEquals(Collections.singletonList("1"), search("mock mock-"));
+        assertEquals(Collections.singletonList("3"), search("hir"));
+        assertEquals(Collections.emptyList(), search("nope"));
+    }
+
+    @Test
+    public void searchNotIndexed() {
+        assertFalse(subject.search("saml20_idp", "mock").isPresent());
+    }
+
+    @Test
+    public void evict() {
+        subject.evict(TYPE, Collections.singletonList("1"));
+        assertEquals(Collections.singletonList("2"), search("mock"));
+    }
+
+    @Test
+    public void refresh() {
+        Map changed = document("3", "https://third-sp", "Mock third", null);
+        when(mongoTemplate.findOne(any(Query.class), eq(Map.class), eq(TYPE))).thenReturn(changed);
+        subject.onMetaDataChanged(MetaDataChangedEvent.changed(TYPE, "3"));
+        //Updated entities keep their position
+        assertEquals(Arrays.asList("1", "2", "3"), search("mock"));
+
+        when(mongoTemplate.findOne(any(Query.class), eq(Map.class), eq(TYPE))).thenReturn(null);
+        subject.onMetaDataChanged(MetaDataChangedEvent.deleted(TYPE, "1"));
+        assertEquals(Arrays.asList("2", "3"), search("mock"));
+    }
+
+    @Test
+    public void pollChanges() {
+        when(mongoTemplate.findById(AutoCompleteIndex.CHANGE_COUNTER, Sequence.class))
+                .thenReturn(new Sequence(AutoCompleteIndex.CHANGE_COUNTER, 5L));
+        subject.pollChanges();
+        verify(mongoTemplate, times(1)).stream(any(Query.class), eq(Map.class), anyString());
+
+        //Own changes are already in the index
+        when(mongoTemplate.findOne(any(Query.class), eq(Map.class), eq(TYPE))).thenReturn(documents.get(0));
+        subject.onMetaDataChanged(MetaDataChangedEvent.changed(TYPE, "1"));
+        when(mongoTemplate.findById(AutoCompleteIndex.CHANGE_COUNTER, Sequence.class))
+                .thenReturn(new Sequence(AutoCompleteIndex.CHANGE_COUNTER, 6L));
+        subject.pollChanges();
+        verify(mongoTemplate, times(1)).stream(any(Query.class), eq(Map.class), anyString());
+
+        //Changes of another instance
+        documents.add(document("4", "https://mock-rp", "Fourth", null));
+        when(mongoTemplate.findById(AutoCompleteIndex.CHANGE_COUNTER, Sequence.class))
+                .thenReturn(new Sequence(AutoCompleteIndex.CHANGE_COUNTER, 7L));
+        subject.pollChanges();
+        verify(mongoTemplate, times(2)).stream(any(Query.class), eq(Map.class), anyString());
+        assertEquals(Arrays.asList("1", "2", "4"), search("mock"));
+    }
+
+    private List<String> search(String search) {
+        Optional<List<String>> ids = subject.search(TYPE, search);
+        return ids.orElseThrow(IllegalStateException::new);
+    }
+
+    private Map<String, Object> document(String id, String entityId, String name, String keywords) {
+        Map<String, Object> metaDataFields = new HashMap<>();
+        metaDataFields.put("name:en", name);
+        if (keywords != null) {
+            metaDataFields.put("keywords:nl", keywords);
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("entityid", entityId);
+        data.put("metaDataFields", metaDataFields);
+        Map<String, Object> document = new HashMap<>();
+        document.put("_id", id);
+        document.put("data", data);
+        return document;
+    }
+
+    private CloseableIterator<Map> iterator(List<Map> maps) {
+        Iterator<Map> iterator = maps.iterator();
+        return new CloseableIterator<Map>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Map next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+package manage.repository;
+
+import manage.mongo.Sequence;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EidBlockAllocatorTest {
+
+    private final AtomicLong sequence = new AtomicLong(999L);
+    private final MongoTemplate mongoTemplate = mongoTemplate(sequence, 10L);
+
+    @Test
+    public void next() {
+        EidBlockAllocator allocator = new EidBlockAllocator(mongoTemplate, 10L);
+        List<Long> eids = IntStream.range(0, 25).mapToObj(i -> allocator.next()).collect(Collectors.toList());
+
+        assertEquals(1000L, eids.get(0).longValue());
+        assertEquals(1024L, eids.get(24).longValue());
+        assertEquals(1029L, sequence.get());
+        verify(mongoTemplate, times(3))
+                .findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Sequence.class));
+    }
+
+    @Test
+    public void concurrentNodes() throws Exception {
+        //Two allocators sharing the same sequence behave like two nodes
+        EidBlockAllocator node1 = new EidBlockAllocator(mongoTemplate, 10L);
+        EidBlockAllocator node2 = new EidBlockAllocator(mongoTemplate, 10L);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Long>> futures = IntStream.range(0, 1000)
+                    .mapToObj(i -> executor.submit(() -> i % 2 == 0 ? node1.next() : node2.next()))
+                    .collect(Collectors.toList());
+            Set<Long> eids = new HashSet<>();
+            for (Future<Long> future : futures) {
+                eids.add(future.get());
+            }
+            assertEquals(1000, eids.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static MongoTemplate mongoTemplate(AtomicLong sequence, long blockSize) {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Sequence.class)))
+                .thenAnswer(invocation -> new Sequence(EidBlockAllocator.SEQUENCE, sequence.addAndGet(blockSize)));
+        return mongoTemplate;
+    }
+}
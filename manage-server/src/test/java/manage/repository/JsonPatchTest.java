@@ -0,0 +1,109 @@
+package manage.repository;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonPatchTest {
+
+    @Test
+    public void diffAndApply() {
+        Map<String, Object> source = document();
+        Map<String, Object> target = document();
+        target.put("state", "prodaccepted");
+        target.remove("notes");
+        target.put("allowedall", false);
+        metaDataFields(target).put("name:en", "Changed");
+        metaDataFields(target).put("a/b~c", "escaped");
+
+        List<Map<String, Object>> patch = JsonPatch.diff(source, target);
+
+        assertEquals(5, patch.size());
+        assertEquals(target, JsonPatch.apply(source, patch));
+        //The source is not modified
+        assertEquals(document(), source);
+    }
+
+    @Test
+    public void diffListAppend() {
+        Map<String, Object> source = document();
+        Map<String, Object> target = document();
+        allowedEntities(target).add(2, entity("https://inserted"));
+        allowedEntities(target).add(entity("https://appended"));
+
+        List<Map<String, Object>> patch = JsonPatch.diff(source, target);
+
+        assertEquals(2, patch.size());
+        assertEquals(target, JsonPatch.apply(source, patch));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void diffListInsertAndRemove() {
+        Map<String, Object> source = document();
+        Map<String, Object> target = document();
+        allowedEntities(target).remove(1);
+        allowedEntities(target).add(2, entity("https://inserted"));
+        ((Map<String, Object>) allowedEntities(target).get(0)).put("name", "https://changed");
+
+        List<Map<String, Object>> patch = JsonPatch.diff(source, target);
+
+        assertEquals(3, patch.size());
+        assertEquals(target, JsonPatch.apply(source, patch));
+    }
+
+    @Test
+    public void diffListRemove() {
+        Map<String, Object> source = document();
+        Map<String, Object> target = document();
+        allowedEntities(target).remove(1);
+        allowedEntities(target).remove(0);
+
+        List<Map<String, Object>> patch = JsonPatch.diff(source, target);
+
+        assertEquals(2, patch.size());
+        assertEquals(target, JsonPatch.apply(source, patch));
+    }
+
+    @Test
+    public void diffEqual() {
+        assertTrue(JsonPatch.diff(document(), document()).isEmpty());
+    }
+
+    private Map<String, Object> document() {
+        Map<String, Object> document = new HashMap<>();
+        document.put("entityid", "https://sp");
+        document.put("state", "testaccepted");
+        document.put("notes", "Notes");
+        document.put("allowedall", true);
+        Map<String, Object> metaDataFields = new HashMap<>();
+        metaDataFields.put("name:en", "Name");
+        document.put("metaDataFields", metaDataFields);
+        document.put("allowedEntities", new ArrayList<>(Arrays.asList(
+                entity("https://idp1"), entity("https://idp2"), entity("https://idp3"), entity("https://idp4"))));
+        return document;
+    }
+
+    private Map<String, Object> entity(String name) {
+        Map<String, Object> entity = new HashMap<>();
+        entity.put("name", name);
+        return entity;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> metaDataFields(Map<String, Object> document) {
+        return (Map<String, Object>) document.get("metaDataFields");
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> allowedEntities(Map<String, Object> document) {
+        return (List<Object>) document.get("allowedEntities");
+    }
+}
@@ -1,16 +1,132 @@
 package manage.repository;
 
+import manage.model.MetaData;
+import org.bson.Document;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
 public class MetaDataRepositoryTest {
 
-    private MetaDataRepository subject = new MetaDataRepository(null, "en,nl,pt");
+    private MetaDataRepository subject = new MetaDataRepository(null, "en,nl,pt", 1);
 
     @Test
     public void escapeSpecialChars() {
         String result = subject.escapeSpecialChars("query (((test))) | part [test] ? {} + *");
         assertEquals("query \\(\\(\\(test\\)\\)\\) \\| part \\[test\\] \\? \\{\\} \\+ \\*", result);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void wildcardCriteriaExists() {
+        Document criteria = subject.wildcardCriteria("data.state", "*").getCriteriaObject();
+        assertEquals(new Document("data.state", new Document("$type", 2)), criteria);
+    }
+
+    @Test
+    public void wildcardCriteriaPrefix() {
+        Document criteria = subject.wildcardCriteria("data.entityid", "https://mock*").getCriteriaObject();
+        assertEquals(new Document("data.entityid",
+                new Document("$gte", "https://mock").append("$lt", "https://mocl")), criteria);
+    }
+
+    @Test
+    public void wildcardCriteriaRegexPrefix() {
+        Document criteria = subject.wildcardCriteria("data.entityid", "https://mock.+sp*").getCriteriaObject();
+        Pattern pattern = (Pattern) criteria.get("data.entityid");
+        assertEquals("https://mock.+sp*", pattern.pattern());
+        assertEquals(Pattern.CASE_INSENSITIVE, pattern.flags());
+    }
+
+    @Test
+    public void wildcardCriteriaInfix() {
+        Document criteria = subject.wildcardCriteria("data.entityid", "http.*mock").getCriteriaObject();
+        Pattern pattern = (Pattern) criteria.get("data.entityid");
+        assertEquals("http.*mock", pattern.pattern());
+    }
+
+    @Test
+    public void findReferencesScansUntilTheIndexIsComplete() {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        ReferenceIndex referenceIndex = mock(ReferenceIndex.class);
+        MetaDataRepository repository = new MetaDataRepository(mongoTemplate, "en", 1);
+        repository.setReferenceIndex(referenceIndex);
+        List<String> relations = Collections.singletonList("allowedEntities");
+
+        repository.findReferences("saml20_idp", relations, "https://sp");
+        verify(referenceIndex, never()).referencing(anyString(), anyCollection(), anyString());
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).find(query.capture(), eq(MetaData.class), eq("saml20_idp"));
+        assertEquals(new Document("$or", Collections.singletonList(new Document("data.allowedEntities.name", "https://sp"))),
+                query.getValue().getQueryObject());
+
+        when(referenceIndex.isComplete()).thenReturn(true);
+        assertTrue(repository.findReferences("saml20_idp", relations, "https://sp").isEmpty());
+        verify(referenceIndex).referencing("saml20_idp", relations, "https://sp");
+        verifyNoMoreInteractions(mongoTemplate);
+    }
+
+    @Test
+    public void updateWithRevisionsWritesNothingOnConcurrentModification() {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+        MetaDataRepository repository = new MetaDataRepository(mongoTemplate, "en", 1);
+        repository.setApplicationEventPublisher(eventPublisher);
+        MetaData current = new MetaData("1", 2L, "saml20_sp", null, new HashMap<>());
+        when(mongoTemplate.find(any(Query.class), eq(MetaData.class), eq("saml20_sp")))
+                .thenReturn(new ArrayList<>(Collections.singletonList(current)));
+
+        MetaData updated = new MetaData("1", 1L, "saml20_sp", null, new HashMap<>());
+        try {
+            repository.updateWithRevisions("saml20_sp", Collections.singletonList(updated), "test", "note");
+            fail();
+        } catch (OptimisticLockingFailureException e) {
+            assertEquals("1 of the 1 MetaData of type saml20_sp were modified concurrently", e.getMessage());
+        }
+        verify(mongoTemplate, never()).insert(anyCollection(), anyString());
+        verify(mongoTemplate, never()).bulkOps(any(BulkOperations.BulkMode.class), anyString());
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    public void findRawPageKeepsIdCriteria() {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        MetaDataRepository repository = new MetaDataRepository(mongoTemplate, "en", 1);
+        String continuationToken = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString("1".getBytes(StandardCharsets.UTF_8));
+
+        repository.findRawPage("saml20_sp", "{\"_id\": {\"$in\": [\"1\", \"2\"]}}", 10, continuationToken, false);
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).find(query.capture(), eq(MetaData.class), eq("saml20_sp"));
+        assertEquals(new Document("$and", Arrays.asList(
+                new Document("_id", new Document("$in", Arrays.asList("1", "2"))),
+                new Document("_id", new Document("$gt", "1")))),
+                query.getValue().getQueryObject());
+    }
+}
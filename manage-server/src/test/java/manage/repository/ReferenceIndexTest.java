@@ -0,0 +1,67 @@
+package manage.repository;
+
+import manage.AbstractIntegrationTest;
+import manage.model.EntityReferences;
+import manage.model.EntityType;
+import manage.model.MetaData;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("unchecked")
+public class ReferenceIndexTest extends AbstractIntegrationTest {
+
+    @Autowired
+    private ReferenceIndex referenceIndex;
+
+    @Test
+    public void referencing() {
+        assertEquals(Collections.singletonList("6"), ids(EntityType.IDP, ReferenceIndex.RELATIONS, "http://mock-sp"));
+        assertEquals(Collections.singletonList("6"), ids(EntityType.IDP, Collections.singletonList("mfaEntities"),
+                "https://serviceregistry.test2.surfconext.nl/simplesaml/module.php/saml/sp/metadata.php/default-sp"));
+        assertEquals(Arrays.asList("10", "9"), ids(EntityType.RP, Collections.singletonList(ReferenceIndex.SCOPES), "groups"));
+        assertTrue(referenceIndex.entityIds(EntityType.SP.getType()).contains("http://mock-sp"));
+    }
+
+    @Test
+    public void updatedAfterChange() {
+        MetaData idp = metaDataRepository.findById("6", EntityType.IDP.getType());
+        List<Map<String, String>> allowedEntities = (List<Map<String, String>>) idp.getData().get("allowedEntities");
+        allowedEntities.removeIf(entry -> entry.get("name").equals("http://mock-sp"));
+        metaDataRepository.update(idp);
+
+        assertEquals(Collections.singletonList("6"), ids(EntityType.IDP, ReferenceIndex.RELATIONS, "http://mock-sp"));
+        assertEquals(0, ids(EntityType.IDP, Collections.singletonList("allowedEntities"), "http://mock-sp").size());
+    }
+
+    @Test
+    public void synchronize() {
+        //Changes made outside of the MetaDataRepository are not published
+        mongoTemplate().updateFirst(new Query(Criteria.where("_id").is("7")),
+                new Update().push("data.allowedEntities", Collections.singletonMap("name", "http://mock-sp"))
+                        .inc("version", 1),
+                EntityType.IDP.getType());
+        assertEquals(Collections.singletonList("6"), ids(EntityType.IDP, ReferenceIndex.RELATIONS, "http://mock-sp"));
+
+        referenceIndex.synchronize(EntityType.IDP.getType());
+        assertEquals(Arrays.asList("6", "7"), ids(EntityType.IDP, ReferenceIndex.RELATIONS, "http://mock-sp"));
+    }
+
+    private List<String> ids(EntityType type, List<String> relations, String name) {
+        return referenceIndex.referencing(type.getType(), relations, name).stream()
+                .map(EntityReferences::getId)
+                .sorted()
+                .collect(toList());
+    }
+}
@@ -0,0 +1,156 @@
+package manage.repository;
+
+import manage.AbstractIntegrationTest;
+import manage.exception.UnsearchableRevisionFieldException;
+import manage.model.EntityType;
+import manage.model.KeysetPage;
+import manage.model.MetaData;
+import org.junit.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.util.stream.Collectors.toList;
+import static manage.mongo.MongoChangelog.REVISION_POSTFIX;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"spring.data.mongodb.uri=mongodb://localhost:27017/metadata_test", "oidc.feature=false",
+                "revisions.delta_enabled=true", "revisions.snapshot_interval=3"})
+public class RevisionStoreTest extends AbstractIntegrationTest {
+
+    private static final String REVISION_TYPE = EntityType.SP.getType().concat(REVISION_POSTFIX);
+
+    @Test
+    public void revisions() {
+        for (int i = 0; i < 5; i++) {
+            MetaData previous = metaDataRepository.findById("1", EntityType.SP.getType());
+            previous.revision(UUID.randomUUID().toString());
+            metaDataRepository.save(previous);
+
+            MetaData current = metaDataRepository.findById("1", EntityType.SP.getType());
+            current.promoteToLatest("test", "Revision " + i);
+            current.metaDataFields().put("description:en", "Description " + i);
+            metaDataRepository.update(current);
+        }
+        long deltas = mongoTemplate().count(
+                new Query(Criteria.where("revision.parentId").is("1").and(RevisionStore.DELTA).exists(true)),
+                REVISION_TYPE);
+        //Revision 0 and 3 are snapshots
+        assertEquals(3L, deltas);
+
+        List<MetaData> revisions = metaDataRepository.revisions(REVISION_TYPE, "1").stream()
+                .sorted(Comparator.comparingInt(metaData -> metaData.getRevision().getNumber()))
+                .collect(toList());
+        assertEquals(5, revisions.size());
+        for (int i = 1; i < 5; i++) {
+            MetaData revision = revisions.get(i);
+            assertEquals(i, revision.getRevision().getNumber());
+            assertEquals("Description " + (i - 1), revision.metaDataFields().get("description:en"));
+            assertEquals("Duis ad do", revision.getData().get("entityid"));
+        }
+
+        MetaData single = metaDataRepository.findById(revisions.get(4).getId(), REVISION_TYPE);
+        assertEquals("Description 3", single.metaDataFields().get("description:en"));
+
+        KeysetPage<MetaData> page = metaDataRepository.revisionsPage(REVISION_TYPE, "1", 2, null, true);
+        assertEquals(2, page.getResults().size());
+        assertEquals(5L, page.getTotal().longValue());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void searchRevisions() {
+        for (int i = 0; i < 3; i++) {
+            MetaData previous = metaDataRepository.findById("1", EntityType.SP.getType());
+            previous.revision(UUID.randomUUID().toString());
+            metaDataRepository.save(previous);
+
+            MetaData current = metaDataRepository.findById("1", EntityType.SP.getType());
+            current.promoteToLatest("test", "Revision " + i);
+            current.getData().put("notes", "Notes " + i);
+            metaDataRepository.update(current);
+        }
+        //The GUI "Find my data" searches the revisions on entityid and shows the notes and names
+        List<Map> results = metaDataRepository.search(REVISION_TYPE,
+                Collections.singletonMap("entityid", ".*Duis.*"), Collections.emptyList(), false, true);
+        assertEquals(3, results.size());
+        results.forEach(result -> {
+            Map<String, Object> data = (Map<String, Object>) result.get("data");
+            assertEquals("OpenConext Valid SP", ((Map<String, Object>) data.get("metaDataFields")).get("name:en"));
+            assertFalse(result.containsKey(RevisionStore.DELTA));
+        });
+        List<Object> notes = results.stream()
+                .map(result -> ((Map<String, Object>) result.get("data")).get("notes"))
+                .sorted(Comparator.comparing(String::valueOf))
+                .collect(toList());
+        assertEquals(Arrays.asList("Notes 0", "Notes 1", null), notes);
+
+        List<MetaData> raw = metaDataRepository.findRaw(REVISION_TYPE, "{\"revision.parentId\": \"1\"}");
+        assertEquals(3, raw.size());
+        raw.forEach(revision -> assertTrue(revision.getData().containsKey("allowedEntities")));
+    }
+
+    @Test(expected = UnsearchableRevisionFieldException.class)
+    public void searchRevisionsOnNonHeaderField() {
+        revise(3);
+        //The allowed entities are only stored in the patch of the deltas
+        metaDataRepository.search(REVISION_TYPE, Collections.singletonMap("allowedEntities.name", "https://idp"),
+                Collections.emptyList(), false, true);
+    }
+
+    @Test(expected = UnsearchableRevisionFieldException.class)
+    public void findRawRevisionsOnNonHeaderField() {
+        revise(3);
+        metaDataRepository.findRaw(REVISION_TYPE, "{$or: [{\"data.entityid\": \"Duis ad do\"}, " +
+                "{\"data.metaDataFields.coin:policy_enforcement_decision_required\": true}]}");
+    }
+
+    @Test
+    public void findRawRevisionsOnHeaderFields() {
+        revise(3);
+        List<MetaData> raw = metaDataRepository.findRaw(REVISION_TYPE,
+                "{\"data.entityid\": \"Duis ad do\", \"data.metaDataFields.name:en\": \"OpenConext Valid SP\"}");
+        assertEquals(3, raw.size());
+    }
+
+    @Test
+    public void revisionsWithMissingBase() {
+        revise(2);
+        mongoTemplate().remove(new Query(Criteria.where("revision.parentId").is("1").and("revision.number").is(0)),
+                REVISION_TYPE);
+
+        //The delta on the missing snapshot is listed with its header
+        List<MetaData> revisions = metaDataRepository.revisions(REVISION_TYPE, "1");
+        assertEquals(1, revisions.size());
+        assertEquals("Duis ad do", revisions.get(0).getData().get("entityid"));
+        assertFalse(revisions.get(0).getData().containsKey("allowedEntities"));
+
+        //The next revision can't be stored as a delta on the broken chain and becomes a snapshot
+        revise(1);
+        assertEquals(0L, mongoTemplate().count(new Query(Criteria.where("revision.parentId").is("1")
+                .and("revision.number").is(2).and(RevisionStore.DELTA).exists(true)), REVISION_TYPE));
+        assertEquals(2, metaDataRepository.revisions(REVISION_TYPE, "1").size());
+    }
+
+    private void revise(int count) {
+        for (int i = 0; i < count; i++) {
+            MetaData previous = metaDataRepository.findById("1", EntityType.SP.getType());
+            previous.revision(UUID.randomUUID().toString());
+            metaDataRepository.save(previous);
+
+            MetaData current = metaDataRepository.findById("1", EntityType.SP.getType());
+            current.promoteToLatest("test", "Revision " + i);
+            metaDataRepository.update(current);
+        }
+    }
+}